@@ -0,0 +1,433 @@
+package application;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import catalogs.BlockChain;
+import catalogs.UserCatalog;
+import entities.User;
+import handlers.ShowInfoHandler;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.Opcode;
+import utils.GroupCommit;
+
+/**
+ * A classe BinarySession trata de uma sessao que usa o protocolo binario
+ * definido em FrameCodec. Cada pedido e respondido com uma frame OK ou ERROR
+ * com o mesmo identificador de pedido.
+ *
+ * O cliente pode enviar varios pedidos sem esperar pelas respostas. Os
+ * pedidos sao executados por uma pool partilhada e respondidos pela ordem em
+ * que terminam. Os comandos que alteram o estado da aplicacao sao executados
+ * pela ordem em que chegaram, um de cada vez por sessao, e as assinaturas das
+ * transacoes sao verificadas assim que o pedido chega, sem ocupar a pool. Os
+ * comandos de consulta (view, wallet, list e a leitura de imagens por blocos)
+ * correm em paralelo se a sessao nao tiver alteracoes pendentes; caso
+ * contrario sao executados depois delas, para verem o seu resultado. A
+ * resposta a uma alteracao so e enviada depois de esta estar no disco, mas a
+ * espera nao ocupa nenhuma thread da pool (ver GroupCommit.whenDurable).
+ *
+ * As respostas sao escritas por um escritor proprio de cada sessao, que usa
+ * uma thread de uma pool separada apenas enquanto tem respostas por enviar.
+ * Assim um cliente lento a ler as respostas nao ocupa as threads que executam
+ * os pedidos das outras sessoes.
+ *
+ * Cada pedido tem no maximo FrameCodec.MAX_REQUEST_FRAME_SIZE bytes; as
+ * imagens sao enviadas por blocos com UPLOAD e nunca no proprio pedido ADD.
+ *
+ * A configuracao e feita atraves das seguintes propriedades do sistema:
+ * <ul>
+ * <li>tintolmarket.requestWorkers - threads da pool que executa os pedidos
+ * (por omissao o dobro do numero de processadores)</li>
+ * <li>tintolmarket.maxInFlight - pedidos de uma sessao em execucao ao mesmo
+ * tempo (por omissao 64)</li>
+ * </ul>
+ */
+class BinarySession {
+
+	private static final ExecutorService WORKERS = newWorkerPool();
+	private static final ExecutorService WRITERS = newWriterPool();
+	private static final int MAX_IN_FLIGHT = Integer.getInteger("tintolmarket.maxInFlight", 64);
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final WritableByteChannel channel;
+	private final BlockChain blockChain;
+	private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+	private final SerialExecutor updates = new SerialExecutor(WORKERS);
+	private final SerialExecutor writer = new SerialExecutor(WRITERS);
+	private final AtomicInteger pendingUpdates = new AtomicInteger();
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param input      a stream de input, ja depois da negociacao do protocolo
+	 * @param output     a stream de output; se for tambem um WritableByteChannel,
+	 *                   as imagens sao escritas diretamente nele
+	 * @param blockChain a blockchain mantida pelo server
+	 */
+	BinarySession(InputStream input, OutputStream output, BlockChain blockChain) {
+		this.in = new DataInputStream(input);
+		this.out = new DataOutputStream(new BufferedOutputStream(output));
+		this.channel = output instanceof WritableByteChannel ? (WritableByteChannel) output : null;
+		this.blockChain = blockChain;
+	}
+
+	/**
+	 * Autentica o cliente e trata dos seus pedidos ate este terminar a sessao
+	 *
+	 * @throws Exception se ocorrer um erro na comunicacao
+	 */
+	void run() throws Exception {
+		User user = login();
+		if (user == null)
+			return;
+		try {
+			while (true) {
+				Frame request = FrameCodec.read(in, FrameCodec.MAX_REQUEST_FRAME_SIZE);
+				if (request.getOpcode() == Opcode.EXIT)
+					break;
+				inFlight.acquire();
+				if (!isQuery(request)) {
+					pendingUpdates.incrementAndGet();
+					CompletableFuture<boolean[]> verified = ServerCommands.verify(user, request);
+					updates.execute(() -> {
+						Frame response;
+						try {
+							response = handle(request, user, verified.join());
+						} finally {
+							pendingUpdates.decrementAndGet();
+						}
+						GroupCommit.whenDurable().whenComplete((v, e) -> respond(
+								e == null ? response : Frame.error(request, "Erro ao gravar as alteracoes")));
+					}, verified);
+				} else if (pendingUpdates.get() > 0) {
+					updates.execute(() -> respond(handle(request, user, null)));
+				} else {
+					WORKERS.execute(() -> respond(handle(request, user, null)));
+				}
+			}
+		} finally {
+			// esperar pelos pedidos em curso antes de fechar a ligacao
+			inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+		}
+	}
+
+	/**
+	 * Indica se um pedido apenas consulta o estado da aplicacao
+	 *
+	 * @param request o pedido
+	 * @return true se o pedido pode ser executado em paralelo com os restantes
+	 */
+	private static boolean isQuery(Frame request) {
+		byte op = request.getOpcode();
+		return op == Opcode.VIEW || op == Opcode.FETCH || op == Opcode.WALLET || op == Opcode.LIST;
+	}
+
+	/**
+	 * Efetua o login do cliente atraves do desafio com nonce ou, se o cliente o
+	 * apresentar, de um ticket de sessao ainda valido
+	 *
+	 * @return o utilizador autenticado, ou null se a autenticacao falhou
+	 * @throws Exception se ocorrer um erro na comunicacao
+	 */
+	private User login() throws Exception {
+		UserCatalog userCatalog = UserCatalog.getInstance();
+		Frame request = FrameCodec.read(in, FrameCodec.MAX_LOGIN_FRAME_SIZE);
+		if (request.getOpcode() != Opcode.LOGIN)
+			throw new IllegalStateException("Pedido de login esperado");
+		String name = request.getString(0);
+		boolean newUser = userCatalog.getCertificateName(name) == null;
+
+		// um ticket de sessao valido dispensa o desafio
+		if (!newUser && request.size() > 1 && SessionTickets.verify(name, request.getBytes(1))) {
+			send(loggedIn(request, name));
+			return userCatalog.getUserByName(name);
+		}
+
+		byte[] nonce = userCatalog.generateNonce();
+		send(new Frame(Opcode.CHALLENGE, request.getRequestId()).add(nonce).add(newUser));
+
+		Frame proof = FrameCodec.read(in, FrameCodec.MAX_LOGIN_FRAME_SIZE);
+		boolean result;
+		if (proof.getOpcode() != Opcode.PROOF) {
+			result = false;
+		} else if (newUser) {
+			CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+			Certificate cert = certificateFactory.generateCertificate(new ByteArrayInputStream(proof.getBytes(2)));
+			result = userCatalog.registerUser(name, nonce, proof.getBytes(1), proof.getBytes(0), cert);
+		} else {
+			result = userCatalog.verifyNonce(name, nonce, proof.getBytes(0));
+		}
+
+		if (!result) {
+			System.out.println("Credenciais invalidas");
+			send(Frame.error(proof, "Credenciais invalidas"));
+			return null;
+		}
+		send(loggedIn(proof, name));
+		return userCatalog.getUserByName(name);
+	}
+
+	/**
+	 * Cria a resposta a um login bem sucedido, com um novo ticket de sessao se
+	 * os tickets estiverem ativos
+	 *
+	 * @param request o ultimo pedido do login
+	 * @param name    o nome do utilizador autenticado
+	 * @return a resposta
+	 * @throws Exception se ocorrer um erro ao emitir o ticket
+	 */
+	private static Frame loggedIn(Frame request, String name) throws Exception {
+		Frame response = Frame.ok(request);
+		if (SessionTickets.enabled())
+			response.add(SessionTickets.issue(name));
+		return response;
+	}
+
+	/**
+	 * Executa um pedido do cliente
+	 *
+	 * @param request o pedido
+	 * @param user    o utilizador autenticado
+	 * @param valid   o resultado da verificacao das assinaturas de um pedido
+	 *                SELL, BUY ou BATCH, obtido com ServerCommands.verify
+	 * @return a resposta ao pedido
+	 */
+	private Frame handle(Frame request, User user, boolean[] valid) {
+		try {
+			switch (request.getOpcode()) {
+			case Opcode.ADD:
+				if (request.size() != 2) // a imagem so e aceite por blocos, com UPLOAD
+					return Frame.error(request, "A imagem deve ser enviada com UPLOAD");
+				return Frame.ok(request).add(ServerCommands.add(user, request.getString(0), request.getString(1)));
+			case Opcode.UPLOAD:
+				if (request.size() == 2) // ponto onde retomar o envio da imagem com este hash
+					return Frame.ok(request)
+							.add(ImageTransfer.received(user, request.getString(0), request.getString(1)));
+				return Frame.ok(request).add(
+						ImageTransfer.write(user, request.getString(0), request.getLong(1), request.getBytes(2)));
+			case Opcode.SELL:
+				return Frame.ok(request).add(ServerCommands.sell(user, request.getString(0), request.getDouble(1),
+						request.getInt(2), request.getBytes(3), valid[0]));
+			case Opcode.VIEW:
+				return view(request);
+			case Opcode.FETCH:
+				return Frame.ok(request).add(ImageTransfer.read(ImageTransfer.imageOf(request.getString(0)),
+						request.getLong(1), request.getInt(2)));
+			case Opcode.BUY:
+				return Frame.ok(request).add(ServerCommands.buy(user, request.getString(0), request.getString(1),
+						request.getInt(2), request.getBytes(3), valid[0]));
+			case Opcode.WALLET:
+				return Frame.ok(request).add(ServerCommands.wallet(user));
+			case Opcode.CLASSIFY:
+				return Frame.ok(request)
+						.add(ServerCommands.classify(user, request.getString(0), request.getString(1)));
+			case Opcode.TALK:
+				return Frame.ok(request).add(ServerCommands.talk(user, request.getString(0), request.getString(1)));
+			case Opcode.READ:
+				return Frame.ok(request).add(ServerCommands.read(user));
+			case Opcode.LIST:
+				return Frame.ok(request).add(ServerCommands.list(blockChain));
+			case Opcode.BATCH:
+				return ServerCommands.batch(user, request, valid);
+			default:
+				return Frame.error(request, "Comando nao reconhecido");
+			}
+		} catch (Throwable e) {
+			// qualquer falha tem de ter resposta, para libertar o lugar do pedido
+			return Frame.error(request, e.getMessage());
+		}
+	}
+
+	/**
+	 * Executa um pedido VIEW. O pedido tem a forma [vinho] ou [vinho, blocos,
+	 * hash]. Na primeira a resposta e [texto, imagem, bytes]. Na segunda a
+	 * resposta e [texto, imagem, hash], seguida do tamanho da imagem, se a imagem
+	 * for obtida depois com FETCH, ou dos seus bytes. Se o hash enviado pelo
+	 * cliente for o da imagem atual, o cliente ja tem a imagem e a resposta
+	 * termina no hash.
+	 *
+	 * @param request o pedido
+	 * @return a resposta ao pedido
+	 * @throws Exception se o vinho nao existir ou ocorrer um erro ao ler a imagem
+	 */
+	private Frame view(Frame request) throws Exception {
+		String[] result = ShowInfoHandler.view(request.getString(0));
+		File img = new File(result[1]);
+		ImageCache images = ImageCache.getInstance();
+		Frame response = Frame.ok(request).add(result[0]).add(img.getName());
+		if (request.size() < 3)
+			return response.add(images.get(img));
+
+		String hash = images.hash(img);
+		response.add(hash);
+		if (hash.equals(request.getString(2)))
+			return response;
+		if (request.getBoolean(1))
+			return response.add(img.length());
+		return response.add(images.get(img));
+	}
+
+	/**
+	 * Entrega uma resposta ao escritor da sessao, que a envia ao cliente pela
+	 * ordem de entrega e liberta o lugar do pedido
+	 *
+	 * @param response a resposta a enviar
+	 */
+	private void respond(Frame response) {
+		try {
+			writer.execute(() -> {
+				try {
+					send(response);
+				} catch (Exception e) {
+					// a ligacao foi fechada, a resposta perde-se
+				} finally {
+					inFlight.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Envia uma frame ao cliente
+	 *
+	 * @param frame a frame a enviar
+	 * @throws Exception se ocorrer um erro na comunicacao
+	 */
+	private void send(Frame frame) throws Exception {
+		synchronized (out) {
+			FrameCodec.write(out, channel, frame);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Cria a pool que executa os pedidos de todas as sessoes binarias
+	 *
+	 * @return a pool criada
+	 */
+	private static ExecutorService newWorkerPool() {
+		AtomicInteger count = new AtomicInteger();
+		int size = Integer.getInteger("tintolmarket.requestWorkers",
+				2 * Runtime.getRuntime().availableProcessors());
+		return Executors.newFixedThreadPool(size, r -> {
+			Thread t = new Thread(r, "request-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Cria a pool que escreve as respostas de todas as sessoes binarias. Cada
+	 * sessao ocupa no maximo uma thread, e apenas enquanto tem respostas por
+	 * enviar.
+	 *
+	 * @return a pool criada
+	 */
+	private static ExecutorService newWriterPool() {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "response-writer-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Executor que corre as tarefas submetidas uma de cada vez, pela ordem de
+	 * submissao, usando as threads de outro executor. Uma tarefa pode depender de
+	 * um resultado assincrono: enquanto este nao estiver disponivel, a tarefa e
+	 * as seguintes ficam em espera sem ocupar nenhuma thread.
+	 */
+	private static class SerialExecutor implements Executor {
+
+		private static final CompletableFuture<Void> READY = CompletableFuture.completedFuture(null);
+
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		private final ArrayDeque<CompletableFuture<?>> conditions = new ArrayDeque<>();
+		private final Executor executor;
+		private boolean running;
+
+		/**
+		 * Construtor da classe
+		 *
+		 * @param executor o executor que fornece as threads
+		 */
+		SerialExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			execute(task, READY);
+		}
+
+		/**
+		 * Submete uma tarefa que so pode correr depois de um resultado estar
+		 * disponivel
+		 *
+		 * @param task      a tarefa
+		 * @param condition o resultado de que a tarefa depende
+		 */
+		synchronized void execute(Runnable task, CompletableFuture<?> condition) {
+			tasks.add(task);
+			conditions.add(condition);
+			if (!running) {
+				running = true;
+				executor.execute(this::drain);
+			}
+		}
+
+		/**
+		 * Executa as tarefas pendentes ate a fila ficar vazia ou a proxima tarefa
+		 * ter de esperar pelo resultado de que depende
+		 */
+		private void drain() {
+			while (true) {
+				Runnable task;
+				synchronized (this) {
+					CompletableFuture<?> condition = conditions.peek();
+					if (condition == null) {
+						running = false;
+						return;
+					}
+					if (!condition.isDone()) {
+						condition.whenComplete((result, e) -> executor.execute(this::drain));
+						return;
+					}
+					conditions.poll();
+					task = tasks.poll();
+				}
+				boolean completed = false;
+				try {
+					task.run();
+					completed = true;
+				} finally {
+					if (!completed) // a tarefa falhou, as seguintes continuam noutra thread
+						executor.execute(this::drain);
+				}
+			}
+		}
+	}
+
+}
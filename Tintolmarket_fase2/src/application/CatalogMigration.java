@@ -0,0 +1,40 @@
+package application;
+
+import catalogs.UserCatalog;
+import catalogs.WineAdCatalog;
+import catalogs.WineCatalog;
+import utils.GroupCommit;
+
+/**
+ * Ferramenta que converte os catalogos guardados no formato de texto das
+ * versoes anteriores (linhas produzidas por toString) para o formato binario
+ * atual. O servidor faz a mesma conversao ao carregar os catalogos; esta
+ * ferramenta permite faze-la antes de o servidor arrancar.
+ *
+ * Deve ser executada na pasta do servidor, na forma CatalogMigration
+ * <password-cifra>.
+ */
+public class CatalogMigration {
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Argumentos invalidos. A ferramenta e iniciada na forma CatalogMigration <password-cifra>.");
+			System.exit(0);
+		}
+		try {
+			TintolmarketServer.initFileKey(args[0]);
+			TintolmarketServer.verifyCatalogs();
+		} catch (Exception e) {
+			System.out.println("Erro ao verificar a integridade dos ficheiros.");
+			System.exit(0);
+		}
+
+		// carregar os catalogos converte-os e reescreve-os no formato binario
+		UserCatalog.getInstance();
+		WineCatalog.getInstance();
+		WineAdCatalog.getInstance();
+		GroupCommit.awaitDurable();
+		System.out.println("Catalogos convertidos.");
+	}
+
+}
@@ -0,0 +1,307 @@
+package application;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+import catalogs.BlockChain;
+import catalogs.UserCatalog;
+import entities.User;
+import exceptions.WineNotFoundException;
+import exceptions.WrongCredentialsException;
+import handlers.ShowInfoHandler;
+import protocol.FrameCodec;
+import utils.GroupCommit;
+
+/**
+ * 
+ * Classe ClientSession que representa a sessao de comunicacao com um cliente.
+ * As sessoes sao executadas pelo ConnectionScheduler.
+ */
+class ClientSession implements Runnable {
+
+	private InputStream input;
+	private OutputStream output;
+	private Closeable connection;
+	private BlockChain blockChain;
+
+	/**
+	 * Construtor da classe
+	 * 
+	 * @param input      a stream de input da ligacao
+	 * @param output     a stream de output da ligacao
+	 * @param connection a ligacao a fechar no fim da sessao
+	 * @param blockChain a blockchain mantida pelo server
+	 */
+	public ClientSession(InputStream input, OutputStream output, Closeable connection, BlockChain blockChain) {
+		this.input = input;
+		this.output = output;
+		this.connection = connection;
+		this.blockChain = blockChain;
+	}
+
+	@Override
+	public void run() {
+
+		System.out.println("Cliente conectado");
+		ObjectOutputStream out = null;
+		ObjectInputStream in = null;
+
+		try {
+			// verificar se o cliente pediu o protocolo binario
+			BufferedInputStream buffered = new BufferedInputStream(input);
+			if (FrameCodec.accept(buffered, output)) {
+				new BinarySession(buffered, output, blockChain).run();
+				System.out.println("Cliente desconectado");
+				return;
+			}
+
+			// iniciar streams
+			out = new ObjectOutputStream(output);
+			in = new ObjectInputStream(buffered);
+
+			// fazer login do user
+			UserCatalog userCatalog = UserCatalog.getInstance();
+			String name = userCatalog.login(in, out);
+			if (name != null) {
+				out.writeBoolean(true);
+				out.flush();
+				interact(userCatalog.getUserByName(name), in, out);
+				System.out.println("Cliente desconectado");
+			}
+
+		} catch (WrongCredentialsException e) {
+			try {
+				System.out.println(e.getMessage());
+				out.writeBoolean(false);
+				out.flush();
+			} catch (IOException e1) {
+				System.out.println("Ocorreu um erro na comunicacao");
+			}
+		} catch (Exception e) {
+			System.out.println("Cliente desconectado");
+		} finally {
+			try {
+				// fechar ligacoes
+				if (in != null)
+					in.close();
+				if (out != null)
+					out.close();
+				connection.close();
+			} catch (IOException e) {
+				System.out.println("Ocorreu um erro na comunicacao");
+			}
+		}
+	}
+
+	/**
+	 * Metodo para interagir com o usuario apos a autenticacao bem sucedida.
+	 * 
+	 * @param user instancia do usuario logado
+	 * @param in   ObjectInputStream para receber informacoes do cliente
+	 * @param out  ObjectOutputStream para enviar informacoes ao cliente
+	 * @throws Exception em caso de erro na comunicacao com o cliente
+	 */
+	private void interact(User user, ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		boolean exit = false;
+		while (!exit) {
+			boolean image = false;
+			try {
+				String command = in.readUTF();
+				switch (command) {
+				case "a":
+					add(in, out);
+					break;
+				case "s":
+					sell(in, out, user);
+					break;
+				case "v":
+					image = true;
+					view(in, out);
+					break;
+				case "b":
+					buy(in, out, user);
+					break;
+				case "w":
+					wallet(out, user);
+					break;
+				case "c":
+					classify(in, out, user);
+					break;
+				case "t":
+					talk(in, out, user);
+					break;
+				case "r":
+					read(out, user);
+					break;
+				case "l":
+					list(out);
+					break;
+				default:
+					exit = true;
+					break;
+				}
+				// a resposta so segue depois de as alteracoes estarem no disco; se
+				// a sincronizacao falhar, a resposta ja escrita nao e enviada e a
+				// ligacao e fechada
+				try {
+					GroupCommit.awaitDurable();
+				} catch (UncheckedIOException e) {
+					connection.close();
+					throw e;
+				}
+				out.flush();
+				image = false;
+			} catch (WineNotFoundException e) {
+				if (image)
+					out.writeBoolean(false);
+				out.writeUTF(e.getMessage());
+				out.flush();
+			} catch (Exception e) {
+				out.writeUTF(e.getMessage());
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Representa a funcao add
+	 * 
+	 * @param in  a stream de input
+	 * @param out a stream de output
+	 * @throws Exception
+	 */
+	private static void add(ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		String arg1 = in.readUTF();
+		String imageName = in.readUTF(); // ler nome da imagem
+		byte[] bytes = (byte[]) in.readObject();
+		out.writeUTF(ServerCommands.add(arg1, imageName, bytes));
+	}
+
+	/**
+	 * Representa a funcao sell
+	 * 
+	 * @param in   a stream de input
+	 * @param out  a stream de output
+	 * @param user o utilizador em questao
+	 * @throws Exception
+	 */
+	private static void sell(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
+		String wine = in.readUTF();
+		double price = in.readDouble();
+		int qty = in.readInt();
+		byte[] signature = (byte[]) in.readObject();
+
+		out.writeUTF(ServerCommands.sell(user, wine, price, qty, signature));
+	}
+
+	/**
+	 * Representa a funcao view
+	 * 
+	 * @param in  a stream de input
+	 * @param out a stream de output
+	 * @throws Exception
+	 */
+	private static void view(ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		String arg1 = in.readUTF();
+		String[] result = ShowInfoHandler.view(arg1);
+		out.writeBoolean(true);
+		out.writeUTF(result[0]); // enviar printWine
+		File img = new File(result[1]);
+		out.writeUTF(img.getName());
+		byte[] buffer = Files.readAllBytes(img.toPath());
+		out.writeObject(buffer);
+	}
+
+	/**
+	 * Representa a funcao buy
+	 * 
+	 * @param in   a stream de input
+	 * @param out  a stream de output
+	 * @param user o utilizador em questao
+	 * @throws Exception
+	 */
+	private static void buy(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
+		String wine = in.readUTF();
+		String seller = in.readUTF();
+		int num = in.readInt();
+		byte[] signature = (byte[]) in.readObject();
+
+		out.writeUTF(ServerCommands.buy(user, wine, seller, num, signature));
+	}
+
+	/**
+	 * Representa a funcao wallet
+	 * 
+	 * @param out  a stream de output
+	 * @param user o utilizador em questao
+	 * @throws Exception
+	 */
+	private static void wallet(ObjectOutputStream out, User user) throws Exception {
+		out.writeUTF(ServerCommands.wallet(user));
+	}
+
+	/**
+	 * Representa a funcao classify
+	 * 
+	 * @param in   a stream de input
+	 * @param out  a stream de output
+	 * @param user o utilizador em questao
+	 * @throws Exception
+	 */
+	private static void classify(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
+		String arg1 = in.readUTF();
+		out.writeUTF(ServerCommands.classify(user, arg1, in.readUTF()));
+	}
+
+	/**
+	 * Representa a funcao talk
+	 * 
+	 * @param in   a stream de input
+	 * @param out  a stream de output
+	 * @param user o utilizador em questao
+	 * @throws Exception
+	 */
+	private static void talk(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
+		String recipient = in.readUTF();
+		String message = in.readUTF();
+		out.writeUTF(ServerCommands.talk(user, recipient, message));
+	}
+
+	/**
+	 * Representa a funcao read
+	 * 
+	 * @param out  a stream de output
+	 * @param user o utilizador em questao
+	 * @throws Exception
+	 */
+	private static void read(ObjectOutputStream out, User user) throws Exception {
+		out.writeUTF(ServerCommands.read(user));
+	}
+
+	/**
+	 * Representa a funcao list
+	 * 
+	 * @param out a stream de output
+	 * @throws Exception
+	 */
+	private void list(ObjectOutputStream out) {
+		try {
+			out.writeUTF(ServerCommands.list(blockChain));
+		} catch (Exception e) {
+			try {
+				out.writeUTF(e.getMessage());
+			} catch (IOException e1) {
+				e1.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+package application;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import handlers.SignatureVerifier;
+import utils.WriteBehind;
+
+/**
+ * A classe ConnectionScheduler escalona as sessoes dos clientes. Cada sessao
+ * corre numa virtual thread quando a JVM as suporta, ou numa pool limitada de
+ * threads caso contrario. O numero de sessoes admitidas e limitado e sao
+ * mantidas metricas sobre as sessoes ativas e em espera.
+ *
+ * A admissao nunca bloqueia a thread que aceita as ligacoes: sem vagas, a
+ * ligacao e rejeitada de imediato. Na pool, a fila de sessoes em espera e
+ * pequena, para que nenhum cliente fique ligado muito tempo sem ser servido.
+ *
+ * A configuracao e feita atraves das seguintes propriedades do sistema:
+ * <ul>
+ * <li>tintolmarket.scheduler - "virtual" (por omissao) ou "pool"</li>
+ * <li>tintolmarket.poolSize - numero de threads da pool (por omissao 64)</li>
+ * <li>tintolmarket.queueCapacity - sessoes em espera na pool (por omissao
+ * 16; 0 rejeita as sessoes sem thread livre)</li>
+ * <li>tintolmarket.maxSessions - limite de sessoes admitidas (por omissao
+ * 10000)</li>
+ * <li>tintolmarket.metricsInterval - intervalo em segundos entre relatorios
+ * de metricas, incluindo as da verificacao de assinaturas e da escrita
+ * diferida, 0 desativa (por omissao 0)</li>
+ * </ul>
+ */
+public class ConnectionScheduler {
+
+	private final ExecutorService executor;
+	private final ThreadPoolExecutor pool;
+	private final boolean virtual;
+	private final Semaphore admission;
+	private final int maxSessions;
+	private ScheduledExecutorService reporter;
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param useVirtual       se true tenta usar virtual threads
+	 * @param poolSize         numero de threads da pool usada caso nao existam
+	 *                         virtual threads
+	 * @param queueCapacity    numero de sessoes que podem esperar por uma thread
+	 *                         da pool
+	 * @param maxSessions      numero maximo de sessoes admitidas em simultaneo
+	 */
+	public ConnectionScheduler(boolean useVirtual, int poolSize, int queueCapacity, int maxSessions) {
+		ExecutorService virtualExecutor = useVirtual ? newVirtualExecutor() : null;
+		if (virtualExecutor != null) {
+			this.executor = virtualExecutor;
+			this.pool = null;
+			this.virtual = true;
+			this.maxSessions = maxSessions;
+		} else {
+			this.pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+					queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity) : new SynchronousQueue<Runnable>(),
+					new SessionThreadFactory());
+			this.executor = pool;
+			this.virtual = false;
+			// nunca admitir mais sessoes do que as que a pool consegue aceitar
+			this.maxSessions = Math.min(maxSessions, poolSize + queueCapacity);
+		}
+		this.admission = new Semaphore(this.maxSessions);
+	}
+
+	/**
+	 * Cria um escalonador a partir das propriedades do sistema
+	 *
+	 * @return o escalonador configurado
+	 */
+	public static ConnectionScheduler fromSystemProperties() {
+		boolean useVirtual = !"pool".equals(System.getProperty("tintolmarket.scheduler", "virtual"));
+		ConnectionScheduler scheduler = new ConnectionScheduler(useVirtual,
+				Integer.getInteger("tintolmarket.poolSize", 64), Integer.getInteger("tintolmarket.queueCapacity", 16),
+				Integer.getInteger("tintolmarket.maxSessions", 10000));
+		int interval = Integer.getInteger("tintolmarket.metricsInterval", 0);
+		if (interval > 0)
+			scheduler.startReporter(interval);
+		return scheduler;
+	}
+
+	/**
+	 * Submete uma sessao para execucao, se existir vaga. Nunca bloqueia: sem
+	 * vaga, a sessao e rejeitada de imediato.
+	 *
+	 * @param session a sessao a executar
+	 * @return true se a sessao foi admitida, false se foi rejeitada
+	 */
+	public boolean submit(Runnable session) {
+		if (!admission.tryAcquire()) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		waiting.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				waiting.decrementAndGet();
+				int now = active.incrementAndGet();
+				peak.accumulateAndGet(now, Math::max);
+				try {
+					session.run();
+				} finally {
+					active.decrementAndGet();
+					admission.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			waiting.decrementAndGet();
+			admission.release();
+			rejected.incrementAndGet();
+			return false;
+		}
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Obtem o numero de sessoes a correr
+	 *
+	 * @return o numero de sessoes ativas
+	 */
+	public int getActiveSessions() {
+		return active.get();
+	}
+
+	/**
+	 * Obtem o numero de sessoes admitidas que ainda esperam por uma thread
+	 *
+	 * @return a profundidade da fila de espera
+	 */
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	/**
+	 * Obtem uma representacao textual das metricas do escalonador
+	 *
+	 * @return as metricas atuais
+	 */
+	public String metrics() {
+		return String.format("sessoes[%s] ativas=%d fila=%d pico=%d admitidas=%d rejeitadas=%d limite=%d",
+				virtual ? "virtual" : "pool", getActiveSessions(), getQueueDepth(), peak.get(), accepted.get(),
+				rejected.get(), maxSessions);
+	}
+
+	/**
+	 * Termina o escalonador, deixando as sessoes atuais terminar
+	 */
+	public void shutdown() {
+		if (reporter != null)
+			reporter.shutdownNow();
+		executor.shutdown();
+	}
+
+	/**
+	 * Inicia o relatorio periodico das metricas
+	 *
+	 * @param interval o intervalo em segundos
+	 */
+	private void startReporter(int interval) {
+		reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "scheduler-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleAtFixedRate(() -> {
+			System.out.println(metrics());
+			System.out.println(SignatureVerifier.metrics());
+			if (WriteBehind.enabled())
+				System.out.println(WriteBehind.metrics());
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Cria um executor com uma virtual thread por tarefa, se a JVM o suportar
+	 *
+	 * @return o executor, ou null se nao existirem virtual threads
+	 */
+	private static ExecutorService newVirtualExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Fabrica das threads da pool de sessoes
+	 */
+	private static class SessionThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "session-" + count.incrementAndGet());
+		}
+	}
+
+}
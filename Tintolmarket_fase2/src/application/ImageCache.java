@@ -0,0 +1,227 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A classe ImageCache mantem as imagens mais vistas mapeadas em memoria, com
+ * FileChannel.map, para que possam ser enviadas sem serem lidas para o heap.
+ * O conteudo mapeado fica fora do heap e e partilhado por todos os pedidos.
+ *
+ * A cache e limitada pelo numero total de bytes mapeados. Quando o limite e
+ * ultrapassado sao removidas as imagens usadas ha mais tempo. Uma imagem
+ * maior do que o limite nao e guardada, sendo mapeada apenas para o pedido
+ * atual. Uma imagem alterada no disco e mapeada de novo.
+ *
+ * A cache guarda tambem o hash SHA-256 do conteudo de cada imagem, que o
+ * cliente usa para saber se a copia que tem ainda esta atual.
+ *
+ * A configuracao e feita atraves da seguinte propriedade do sistema:
+ * <ul>
+ * <li>tintolmarket.imageCacheBytes - numero maximo de bytes de imagens
+ * mapeadas (por omissao 64 MB)</li>
+ * </ul>
+ */
+final class ImageCache {
+
+	private static final int MAX_HASHES = 4096;
+	private static final int HASH_CHUNK = 1 << 20;
+
+	private static ImageCache instance;
+
+	private final long capacity;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+	private final LinkedHashMap<String, String> hashes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_HASHES;
+		}
+	};
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param capacity o numero maximo de bytes mapeados
+	 */
+	private ImageCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Getter estatico da classe
+	 *
+	 * @return o objeto singleton da classe
+	 */
+	static synchronized ImageCache getInstance() {
+		if (instance == null)
+			instance = new ImageCache(Long.getLong("tintolmarket.imageCacheBytes", 64L * 1024 * 1024));
+		return instance;
+	}
+
+	/**
+	 * Obtem o conteudo de uma imagem
+	 *
+	 * @param image o ficheiro com a imagem
+	 * @return um buffer so de leitura com o conteudo da imagem, proprio de quem
+	 *         o pediu
+	 * @throws IOException se ocorrer um erro ao mapear o ficheiro
+	 */
+	ByteBuffer get(File image) throws IOException {
+		String path = image.getAbsolutePath();
+		long length = image.length();
+		long lastModified = image.lastModified();
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.length == length && entry.lastModified == lastModified)
+				return entry.buffer.duplicate();
+		}
+
+		ByteBuffer buffer = map(image).asReadOnlyBuffer();
+		if (buffer.capacity() <= capacity) {
+			synchronized (this) {
+				Entry old = entries.put(path, new Entry(buffer, length, lastModified));
+				if (old != null)
+					size -= old.buffer.capacity();
+				size += buffer.capacity();
+				evict();
+			}
+		}
+		return buffer.duplicate();
+	}
+
+	/**
+	 * Esquece o mapeamento e o hash de uma imagem que foi substituida no disco.
+	 * Os pedidos em curso continuam a usar o mapeamento antigo, que se refere ao
+	 * ficheiro substituido.
+	 *
+	 * @param image o ficheiro com a imagem
+	 */
+	synchronized void invalidate(File image) {
+		String path = image.getAbsolutePath();
+		Entry old = entries.remove(path);
+		if (old != null)
+			size -= old.buffer.capacity();
+		hashes.keySet().removeIf(key -> key.startsWith(path + "|"));
+	}
+
+	/**
+	 * Obtem uma parte de uma imagem
+	 *
+	 * @param image  o ficheiro com a imagem
+	 * @param offset a posicao inicial
+	 * @param length o numero maximo de bytes
+	 * @return um buffer so de leitura com a parte pedida, mais curta no fim da
+	 *         imagem
+	 * @throws IOException se ocorrer um erro ao mapear o ficheiro
+	 */
+	ByteBuffer get(File image, long offset, int length) throws IOException {
+		long imageLength = image.length();
+		if (offset < 0 || offset > imageLength)
+			throw new IOException("Posicao invalida na imagem");
+		int n = (int) Math.min(length, imageLength - offset);
+		if (imageLength > capacity) // imagem que nao cabe na cache, mapear so a parte pedida
+			return map(image, offset, n).asReadOnlyBuffer();
+		ByteBuffer buffer = get(image);
+		buffer.position((int) offset);
+		buffer.limit((int) offset + n);
+		return buffer.slice();
+	}
+
+	/**
+	 * Obtem o hash do conteudo de uma imagem, calculado apenas quando a imagem
+	 * muda
+	 *
+	 * @param image o ficheiro com a imagem
+	 * @return o hash SHA-256 da imagem, em Base64
+	 * @throws IOException se ocorrer um erro ao ler o ficheiro
+	 */
+	String hash(File image) throws IOException {
+		String key = image.getAbsolutePath() + "|" + image.length() + "|" + image.lastModified();
+		synchronized (this) {
+			String hash = hashes.get(key);
+			if (hash != null)
+				return hash;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			long length = image.length();
+			for (long offset = 0; offset < length; offset += HASH_CHUNK)
+				digest.update(get(image, offset, HASH_CHUNK));
+			String hash = Base64.getEncoder().encodeToString(digest.digest());
+			synchronized (this) {
+				hashes.put(key, hash);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Remove as imagens usadas ha mais tempo ate a cache respeitar o limite
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > capacity && it.hasNext()) {
+			size -= it.next().getValue().buffer.capacity();
+			// o mapeamento e libertado quando o buffer deixar de ser usado
+			it.remove();
+		}
+	}
+
+	/**
+	 * Mapeia um ficheiro em memoria
+	 *
+	 * @param image o ficheiro
+	 * @return o buffer mapeado
+	 * @throws IOException se ocorrer um erro ao mapear o ficheiro
+	 */
+	private static MappedByteBuffer map(File image) throws IOException {
+		return map(image, 0, image.length());
+	}
+
+	/**
+	 * Mapeia uma parte de um ficheiro em memoria
+	 *
+	 * @param image  o ficheiro
+	 * @param offset a posicao inicial
+	 * @param length o numero de bytes
+	 * @return o buffer mapeado
+	 * @throws IOException se ocorrer um erro ao mapear o ficheiro
+	 */
+	private static MappedByteBuffer map(File image, long offset, long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		}
+	}
+
+	/**
+	 * Uma imagem mapeada e o estado do ficheiro quando foi mapeada
+	 */
+	private static class Entry {
+
+		private final ByteBuffer buffer;
+		private final long length;
+		private final long lastModified;
+
+		Entry(ByteBuffer buffer, long length, long lastModified) {
+			this.buffer = buffer;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+}
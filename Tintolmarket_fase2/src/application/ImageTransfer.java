@@ -0,0 +1,271 @@
+package application;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import catalogs.WineCatalog;
+import entities.User;
+import entities.Wine;
+import exceptions.WineNotFoundException;
+import protocol.FrameCodec;
+import utils.GroupCommit;
+
+/**
+ * A classe ImageTransfer trata do envio de imagens por blocos no protocolo
+ * binario. Cada bloco tem no maximo FrameCodec.CHUNK_SIZE bytes, pelo que a
+ * memoria usada por um envio nao depende do tamanho da imagem.
+ *
+ * Uma imagem enviada pelo cliente e escrita num ficheiro parcial, proprio do
+ * utilizador, ate ser associada a um vinho com add. Como o tamanho do ficheiro
+ * parcial indica ate onde o envio chegou, um envio interrompido pode ser
+ * retomado a partir desse ponto.
+ *
+ * Cada ficheiro parcial, no servidor e no cliente, fica associado ao hash
+ * SHA-256 da imagem completa, guardado ao lado num ficheiro HASH_SUFFIX. Um
+ * ficheiro parcial so e retomado se for da mesma imagem, e so passa a imagem
+ * final depois de o hash do seu conteudo ser verificado.
+ */
+final class ImageTransfer {
+
+	/**
+	 * Sufixo do ficheiro com o hash da imagem de um ficheiro parcial
+	 */
+	static final String HASH_SUFFIX = ".sha256";
+
+	private static final int HASH_CHUNK = 64 * 1024;
+
+	private ImageTransfer() {
+	}
+
+	/**
+	 * Obtem o numero de bytes ja recebidos de uma imagem
+	 *
+	 * @param user      o utilizador que envia a imagem
+	 * @param imageName o nome da imagem
+	 * @param hash      o hash da imagem completa
+	 * @return o tamanho do ficheiro parcial, ou 0 se nao existir ou for de outra
+	 *         imagem
+	 * @throws IOException se ocorrer um erro ao guardar o hash
+	 */
+	static long received(User user, String imageName, String hash) throws IOException {
+		File part = partFile(user, imageName);
+		File folder = part.getParentFile();
+		if (!folder.exists())
+			folder.mkdir();
+		return resume(part, hash);
+	}
+
+	/**
+	 * Escreve um bloco de uma imagem no ficheiro parcial. O ficheiro e truncado
+	 * no fim do bloco, pelo que reenviar um bloco anterior recomeca o envio a
+	 * partir desse ponto.
+	 *
+	 * @param user      o utilizador que envia a imagem
+	 * @param imageName o nome da imagem
+	 * @param offset    a posicao do bloco na imagem
+	 * @param chunk     o conteudo do bloco
+	 * @return o numero de bytes recebidos ate agora
+	 * @throws IOException se a posicao for invalida ou ocorrer um erro na escrita
+	 */
+	static long write(User user, String imageName, long offset, byte[] chunk) throws IOException {
+		if (chunk.length > FrameCodec.CHUNK_SIZE)
+			throw new IOException("Bloco de imagem demasiado grande");
+		File part = partFile(user, imageName);
+		File folder = part.getParentFile();
+		if (!folder.exists())
+			folder.mkdir();
+		try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+			if (offset < 0 || offset > file.length())
+				throw new IOException("Posicao invalida no envio da imagem");
+			file.seek(offset);
+			file.write(chunk);
+			file.setLength(offset + chunk.length);
+			return file.length();
+		}
+	}
+
+	/**
+	 * Termina o envio de uma imagem, colocando-a junto das restantes imagens
+	 *
+	 * @param user      o utilizador que enviou a imagem
+	 * @param imageName o nome da imagem
+	 * @return o ficheiro com a imagem
+	 * @throws IOException se a imagem nao tiver sido enviada
+	 */
+	static File complete(User user, String imageName) throws IOException {
+		File part = partFile(user, imageName);
+		if (!part.exists())
+			throw new IOException("A imagem " + imageName + " nao foi enviada");
+		File image = new File("imgFiles//" + new File(imageName).getName());
+		finish(part, image);
+		GroupCommit.changed(image);
+		ImageCache.getInstance().invalidate(image);
+		return image;
+	}
+
+	/**
+	 * Guarda uma imagem recebida de uma so vez. A imagem e escrita num ficheiro
+	 * temporario, que substitui depois a imagem anterior com o mesmo nome, para
+	 * que uma imagem mapeada pela ImageCache nunca seja truncada.
+	 *
+	 * @param imageName o nome da imagem
+	 * @param bytes     o conteudo da imagem
+	 * @return o ficheiro com a imagem
+	 * @throws IOException se ocorrer um erro ao guardar a imagem
+	 */
+	static File save(String imageName, byte[] bytes) throws IOException {
+		File image = new File("imgFiles//" + imageName);
+		File folder = image.getParentFile();
+		if (!folder.exists())
+			folder.mkdir();
+		Path temp = Files.createTempFile(folder.toPath(), image.getName() + ".", ".tmp");
+		try {
+			Files.write(temp, bytes);
+			Files.move(temp, image.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		GroupCommit.changed(image);
+		ImageCache.getInstance().invalidate(image);
+		return image;
+	}
+
+	/**
+	 * Associa um ficheiro parcial ao hash da imagem completa. Se o ficheiro
+	 * parcial existente for de outra imagem, e descartado.
+	 *
+	 * @param part o ficheiro parcial
+	 * @param hash o hash da imagem completa
+	 * @return o numero de bytes do ficheiro parcial que podem ser aproveitados
+	 * @throws IOException se ocorrer um erro ao guardar o hash
+	 */
+	static long resume(File part, String hash) throws IOException {
+		if (hash.equals(expectedHash(part)))
+			return part.length();
+		part.delete();
+		Files.write(hashFile(part).toPath(), hash.getBytes(StandardCharsets.UTF_8));
+		return 0;
+	}
+
+	/**
+	 * Termina uma transferencia: verifica o hash do ficheiro parcial e, se for o
+	 * esperado, coloca-o no lugar da imagem final. Se nao for, o ficheiro parcial
+	 * e descartado e a transferencia recomeca do inicio na proxima vez.
+	 *
+	 * @param part  o ficheiro parcial
+	 * @param image a imagem final
+	 * @throws IOException se o conteudo nao corresponder ao hash esperado ou
+	 *                     ocorrer um erro ao guardar a imagem
+	 */
+	static void finish(File part, File image) throws IOException {
+		String expected = expectedHash(part);
+		File hashFile = hashFile(part);
+		if (expected == null || !expected.equals(hash(part))) {
+			part.delete();
+			hashFile.delete();
+			throw new IOException("A imagem " + image.getName() + " recebida nao corresponde a enviada");
+		}
+		Files.move(part.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		hashFile.delete();
+	}
+
+	/**
+	 * Calcula o hash do conteudo de um ficheiro, no mesmo formato que
+	 * ImageCache.hash
+	 *
+	 * @param file o ficheiro
+	 * @return o hash SHA-256 do ficheiro, em Base64
+	 * @throws IOException se ocorrer um erro ao ler o ficheiro
+	 */
+	static String hash(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[HASH_CHUNK];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+			return Base64.getEncoder().encodeToString(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Obtem a imagem associada a um vinho
+	 *
+	 * @param wineName o nome do vinho
+	 * @return o ficheiro com a imagem
+	 * @throws WineNotFoundException se o vinho nao existir
+	 */
+	static File imageOf(String wineName) throws WineNotFoundException {
+		Wine wine = WineCatalog.getInstance().getWineByName(wineName);
+		if (wine == null)
+			throw new WineNotFoundException("O vinho nao existe");
+		return wine.getImage();
+	}
+
+	/**
+	 * Le um bloco de uma imagem, a partir da ImageCache
+	 *
+	 * @param image  o ficheiro com a imagem
+	 * @param offset a posicao do bloco na imagem
+	 * @param length o tamanho pedido
+	 * @return o bloco lido, mais curto que o pedido no fim da imagem
+	 * @throws IOException se o pedido for invalido ou ocorrer um erro na leitura
+	 */
+	static ByteBuffer read(File image, long offset, int length) throws IOException {
+		if (length < 0 || length > FrameCodec.CHUNK_SIZE)
+			throw new IOException("Bloco de imagem demasiado grande");
+		return ImageCache.getInstance().get(image, offset, length);
+	}
+
+	/**
+	 * Obtem o ficheiro parcial de uma imagem enviada por um utilizador
+	 *
+	 * @param user      o utilizador
+	 * @param imageName o nome da imagem
+	 * @return o ficheiro parcial
+	 */
+	private static File partFile(User user, String imageName) {
+		return new File("imgFiles//" + user.getName() + "_" + new File(imageName).getName() + ".part");
+	}
+
+	/**
+	 * Obtem o ficheiro com o hash da imagem de um ficheiro parcial
+	 *
+	 * @param part o ficheiro parcial
+	 * @return o ficheiro com o hash
+	 */
+	private static File hashFile(File part) {
+		return new File(part.getPath() + HASH_SUFFIX);
+	}
+
+	/**
+	 * Le o hash da imagem a que pertence um ficheiro parcial
+	 *
+	 * @param part o ficheiro parcial
+	 * @return o hash, ou null se o ficheiro parcial nao estiver associado a
+	 *         nenhuma imagem
+	 * @throws IOException se ocorrer um erro na leitura
+	 */
+	private static String expectedHash(File part) throws IOException {
+		File hashFile = hashFile(part);
+		if (!hashFile.exists())
+			return null;
+		return new String(Files.readAllBytes(hashFile.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
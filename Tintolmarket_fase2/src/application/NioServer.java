@@ -0,0 +1,166 @@
+package application;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import catalogs.BlockChain;
+
+/**
+ * A classe NioServer e uma alternativa ao servidor bloqueante baseada num
+ * Selector e em SSLEngine. Um pequeno numero de event loops trata do TLS de
+ * todas as ligacoes, enquanto as sessoes dos clientes sao executadas pelo
+ * ConnectionScheduler. O numero de ligacoes abertas deixa assim de depender
+ * do numero de threads.
+ *
+ * A configuracao e feita atraves das seguintes propriedades do sistema:
+ * <ul>
+ * <li>tintolmarket.eventLoops - numero de event loops (por omissao o numero
+ * de processadores, no maximo 4)</li>
+ * <li>tintolmarket.tlsWorkers - threads usadas nas tarefas pesadas do
+ * handshake TLS (por omissao o numero de processadores)</li>
+ * </ul>
+ */
+public class NioServer {
+
+	private final int port;
+	private final BlockChain blockChain;
+	private final ConnectionScheduler scheduler;
+	private final EventLoop[] loops;
+	private final ExecutorService tlsWorkers;
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param port       a porta onde o servidor aceita ligacoes
+	 * @param blockChain a blockchain mantida pelo server
+	 * @param scheduler  o escalonador das sessoes
+	 * @throws IOException se nao for possivel abrir os selectors
+	 */
+	public NioServer(int port, BlockChain blockChain, ConnectionScheduler scheduler) throws IOException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		this.port = port;
+		this.blockChain = blockChain;
+		this.scheduler = scheduler;
+		this.loops = new EventLoop[Integer.getInteger("tintolmarket.eventLoops", Math.min(cores, 4))];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread t = new Thread(loops[i], "event-loop-" + (i + 1));
+			t.setDaemon(true);
+			t.start();
+		}
+		AtomicInteger count = new AtomicInteger();
+		this.tlsWorkers = Executors.newFixedThreadPool(Integer.getInteger("tintolmarket.tlsWorkers", cores), r -> {
+			Thread t = new Thread(r, "tls-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Aceita ligacoes e distribui-as pelos event loops
+	 *
+	 * @throws Exception se ocorrer um erro no socket do servidor
+	 */
+	public void serve() throws Exception {
+		SSLContext context = SSLContext.getDefault();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		int next = 0;
+		try {
+			while (true) {
+				SocketChannel channel = server.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				SSLEngine engine = context.createSSLEngine();
+				engine.setUseClientMode(false);
+				EventLoop loop = loops[next++ % loops.length];
+				TlsConnection connection = new TlsConnection(channel, engine, loop, tlsWorkers);
+
+				if (scheduler.submit(new ClientSession(connection.getInputStream(), connection.getOutputStream(),
+						connection, blockChain))) {
+					loop.execute(connection::start);
+				} else {
+					System.out.println("Ligacao rejeitada: " + scheduler.metrics());
+					channel.close();
+				}
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Event loop que trata dos eventos de I/O de um conjunto de ligacoes
+	 */
+	static class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Construtor da classe
+		 *
+		 * @throws IOException se nao for possivel abrir o selector
+		 */
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Obtem o selector deste event loop
+		 *
+		 * @return o selector
+		 */
+		Selector selector() {
+			return selector;
+		}
+
+		/**
+		 * Agenda uma tarefa para ser executada na thread do event loop
+		 *
+		 * @param task a tarefa a executar
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						task.run();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						TlsConnection connection = (TlsConnection) key.attachment();
+						if (key.isValid() && key.isReadable())
+							connection.onReadable();
+						if (key.isValid() && key.isWritable())
+							connection.onWritable();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,314 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import catalogs.BlockChain;
+import entities.User;
+import handlers.AddInfoHandler;
+import handlers.ShowInfoHandler;
+import handlers.TransactionHandler;
+import handlers.TransactionHandler.Order;
+import protocol.Frame;
+import protocol.Opcode;
+
+/**
+ * A classe ServerCommands executa os comandos dos clientes e produz as
+ * respostas a enviar. E partilhada pelo protocolo original e pelo protocolo
+ * binario, que diferem apenas na forma como leem os argumentos e enviam as
+ * respostas. Os comandos que alteram o estado devolvem a resposta assim que
+ * as alteracoes sao escritas; quem a envia deve primeiro esperar que estejam no
+ * disco (ver GroupCommit).
+ */
+final class ServerCommands {
+
+	/**
+	 * Numero de campos de cada operacao num pedido BATCH
+	 */
+	static final int BATCH_FIELDS = 5;
+
+	private ServerCommands() {
+	}
+
+	/**
+	 * Representa a funcao add do protocolo original, com a imagem no pedido
+	 *
+	 * @param wine      o nome do vinho
+	 * @param imageName o nome da imagem
+	 * @param image     o conteudo da imagem
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String add(String wine, String imageName, byte[] image) throws Exception {
+		AddInfoHandler.add(wine, ImageTransfer.save(imageName, image));
+		return String.format("Vinho %s adicionado com sucesso!", wine);
+	}
+
+	/**
+	 * Representa a funcao add, com uma imagem ja enviada por blocos
+	 *
+	 * @param user      o utilizador que enviou a imagem
+	 * @param wine      o nome do vinho
+	 * @param imageName o nome da imagem
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String add(User user, String wine, String imageName) throws Exception {
+		AddInfoHandler.add(wine, ImageTransfer.complete(user, imageName));
+		return String.format("Vinho %s adicionado com sucesso!", wine);
+	}
+
+	/**
+	 * Representa a funcao sell
+	 *
+	 * @param user      o utilizador em questao
+	 * @param wine      o nome do vinho
+	 * @param price     o preco unitario
+	 * @param qty       a quantidade
+	 * @param signature a assinatura da transacao
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String sell(User user, String wine, double price, int qty, byte[] signature) throws Exception {
+		TransactionHandler.sell(user, wine, price, qty, signature);
+		return sold(wine, price, qty);
+	}
+
+	/**
+	 * Representa a funcao buy
+	 *
+	 * @param user      o utilizador em questao
+	 * @param wine      o nome do vinho
+	 * @param seller    o nome do vendedor
+	 * @param num       a quantidade
+	 * @param signature a assinatura da transacao
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String buy(User user, String wine, String seller, int num, byte[] signature) throws Exception {
+		TransactionHandler.buy(user, wine, seller, num, signature);
+		return bought(wine, num);
+	}
+
+	/**
+	 * Representa a funcao sell, com a assinatura ja verificada
+	 *
+	 * @param user      o utilizador em questao
+	 * @param wine      o nome do vinho
+	 * @param price     o preco unitario
+	 * @param qty       a quantidade
+	 * @param signature a assinatura da transacao
+	 * @param valid     true se a assinatura e valida
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String sell(User user, String wine, double price, int qty, byte[] signature, boolean valid)
+			throws Exception {
+		TransactionHandler.execute(user, Order.sell(wine, price, qty, signature), valid);
+		return sold(wine, price, qty);
+	}
+
+	/**
+	 * Representa a funcao buy, com a assinatura ja verificada
+	 *
+	 * @param user      o utilizador em questao
+	 * @param wine      o nome do vinho
+	 * @param seller    o nome do vendedor
+	 * @param num       a quantidade
+	 * @param signature a assinatura da transacao
+	 * @param valid     true se a assinatura e valida
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String buy(User user, String wine, String seller, int num, byte[] signature, boolean valid)
+			throws Exception {
+		TransactionHandler.execute(user, Order.buy(wine, seller, num, signature), valid);
+		return bought(wine, num);
+	}
+
+	/**
+	 * Executa um conjunto de compras e vendas, descrito pelos campos de um pedido
+	 * BATCH. Cada operacao ocupa BATCH_FIELDS campos: o opcode (SELL ou BUY) e os
+	 * mesmos argumentos que teria num pedido isolado.
+	 *
+	 * @param user    o utilizador em questao
+	 * @param request o pedido
+	 * @param valid   o resultado da verificacao da assinatura de cada operacao
+	 * @return a resposta, com um campo boolean e uma mensagem por operacao
+	 * @throws Exception
+	 */
+	static Frame batch(User user, Frame request, boolean[] valid) throws Exception {
+		List<Order> orders = orders(request);
+		Exception[] errors = TransactionHandler.batch(user, orders, valid);
+		Frame response = Frame.ok(request);
+		for (int i = 0; i < errors.length; i++) {
+			if (errors[i] == null)
+				response.add(true).add(message(request, i * BATCH_FIELDS));
+			else
+				response.add(false).add(String.valueOf(errors[i].getMessage()));
+		}
+		return response;
+	}
+
+	/**
+	 * Inicia a verificacao das assinaturas das operacoes de um pedido SELL, BUY
+	 * ou BATCH, sem esperar pelos resultados, para que a sessao possa verifica-las
+	 * enquanto executa os pedidos anteriores
+	 *
+	 * @param user    o utilizador em questao
+	 * @param request o pedido
+	 * @return o resultado da verificacao de cada operacao, ou null se o pedido
+	 *         nao tiver assinaturas ou estiver mal formado; nunca completa com
+	 *         uma excecao
+	 */
+	static CompletableFuture<boolean[]> verify(User user, Frame request) {
+		List<Order> orders;
+		try {
+			switch (request.getOpcode()) {
+			case Opcode.SELL:
+				orders = Collections.singletonList(Order.sell(request.getString(0), request.getDouble(1),
+						request.getInt(2), request.getBytes(3)));
+				break;
+			case Opcode.BUY:
+				orders = Collections.singletonList(Order.buy(request.getString(0), request.getString(1),
+						request.getInt(2), request.getBytes(3)));
+				break;
+			case Opcode.BATCH:
+				orders = orders(request);
+				break;
+			default:
+				return CompletableFuture.completedFuture(null);
+			}
+		} catch (Exception e) {
+			// o erro e enviado ao cliente quando o pedido for executado
+			return CompletableFuture.completedFuture(null);
+		}
+		int count = orders.size();
+		// uma verificacao que falha conta como assinatura invalida
+		return TransactionHandler.verify(user, orders).exceptionally(e -> new boolean[count]);
+	}
+
+	/**
+	 * Obtem as operacoes de um pedido BATCH
+	 *
+	 * @param request o pedido
+	 * @return as operacoes, pela ordem do pedido
+	 * @throws IllegalArgumentException se o pedido estiver mal formado
+	 */
+	private static List<Order> orders(Frame request) {
+		if (request.size() % BATCH_FIELDS != 0)
+			throw new IllegalArgumentException("Pedido mal formado");
+		List<Order> orders = new ArrayList<>();
+		for (int i = 0; i < request.size(); i += BATCH_FIELDS) {
+			String wine = request.getString(i + 1);
+			int qty = request.getInt(i + 3);
+			byte[] signature = request.getBytes(i + 4);
+			if (request.getInt(i) == Opcode.SELL)
+				orders.add(Order.sell(wine, request.getDouble(i + 2), qty, signature));
+			else if (request.getInt(i) == Opcode.BUY)
+				orders.add(Order.buy(wine, request.getString(i + 2), qty, signature));
+			else
+				throw new IllegalArgumentException("Comando nao reconhecido");
+		}
+		return orders;
+	}
+
+	/**
+	 * Mensagem de sucesso de uma operacao de um pedido BATCH
+	 *
+	 * @param request o pedido
+	 * @param i       o indice do primeiro campo da operacao
+	 * @return a mensagem
+	 */
+	private static String message(Frame request, int i) {
+		if (request.getInt(i) == Opcode.SELL)
+			return sold(request.getString(i + 1), request.getDouble(i + 2), request.getInt(i + 3));
+		return bought(request.getString(i + 1), request.getInt(i + 3));
+	}
+
+	/**
+	 * Representa a funcao wallet
+	 *
+	 * @param user o utilizador em questao
+	 * @return a resposta a enviar ao cliente
+	 */
+	static String wallet(User user) {
+		return ShowInfoHandler.wallet(user);
+	}
+
+	/**
+	 * Representa a funcao classify
+	 *
+	 * @param user  o utilizador em questao
+	 * @param wine  o nome do vinho
+	 * @param stars a classificacao, tal como enviada pelo cliente
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String classify(User user, String wine, String stars) throws Exception {
+		int num = Integer.parseInt(stars);
+		AddInfoHandler.classify(user, wine, num);
+		return String.format("Atribuiu %d estrelas ao vinho %s", num, wine);
+	}
+
+	/**
+	 * Representa a funcao talk
+	 *
+	 * @param user      o utilizador em questao
+	 * @param recipient o destinatario
+	 * @param message   a mensagem cifrada
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String talk(User user, String recipient, String message) throws Exception {
+		AddInfoHandler.talk(user, recipient, message);
+		return String.format("Enviou uma mensagem ao utilizador %s", recipient);
+	}
+
+	/**
+	 * Representa a funcao read
+	 *
+	 * @param user o utilizador em questao
+	 * @return a resposta a enviar ao cliente
+	 */
+	static String read(User user) {
+		return ShowInfoHandler.read(user);
+	}
+
+	/**
+	 * Representa a funcao list
+	 *
+	 * @param blockChain a blockchain mantida pelo server
+	 * @return a resposta a enviar ao cliente
+	 * @throws Exception
+	 */
+	static String list(BlockChain blockChain) throws Exception {
+		return ShowInfoHandler.list(blockChain);
+	}
+
+	/**
+	 * Mensagem de sucesso de uma venda
+	 *
+	 * @param wine  o nome do vinho
+	 * @param price o preco unitario
+	 * @param qty   a quantidade
+	 * @return a mensagem
+	 */
+	private static String sold(String wine, double price, int qty) {
+		return String.format("%d unidade(s) de vinho %s colocada(s) a venda por %.2f com sucesso!", qty, wine, price);
+	}
+
+	/**
+	 * Mensagem de sucesso de uma compra
+	 *
+	 * @param wine o nome do vinho
+	 * @param num  a quantidade
+	 * @return a mensagem
+	 */
+	private static String bought(String wine, int num) {
+		return String.format("O utilizador comprou %d unidades de vinho %s", num, wine);
+	}
+
+}
@@ -0,0 +1,121 @@
+package application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import utils.CryptoService;
+
+/**
+ * A classe SessionTickets emite e verifica os tickets de sessao do protocolo
+ * binario. Um ticket e entregue ao cliente depois de um login bem sucedido e
+ * permite-lhe, ate expirar, voltar a autenticar-se sem o desafio com nonce e
+ * assinatura RSA: basta ao servidor verificar o MAC do ticket.
+ *
+ * Cada ticket contem o nome do utilizador e a hora a que expira, seguidos de
+ * um HMAC-SHA256 calculado com uma chave gerada no arranque do servidor. Os
+ * tickets deixam de ser validos quando o servidor e reiniciado.
+ *
+ * A configuracao e feita atraves da seguinte propriedade do sistema:
+ * <ul>
+ * <li>tintolmarket.ticketLifetime - validade dos tickets em segundos (por
+ * omissao 600; 0 desativa os tickets)</li>
+ * </ul>
+ */
+final class SessionTickets {
+
+	private static final long LIFETIME = Long.getLong("tintolmarket.ticketLifetime", 600) * 1000;
+	private static final int MAC_SIZE = 32;
+	private static final SecretKeySpec KEY = newKey();
+
+	private SessionTickets() {
+	}
+
+	/**
+	 * Indica se os tickets de sessao estao ativos
+	 *
+	 * @return true se o servidor emite e aceita tickets
+	 */
+	static boolean enabled() {
+		return LIFETIME > 0;
+	}
+
+	/**
+	 * Emite um ticket para um utilizador autenticado
+	 *
+	 * @param user o nome do utilizador
+	 * @return o ticket
+	 * @throws GeneralSecurityException se ocorrer um erro no calculo do MAC
+	 */
+	static byte[] issue(String user) throws GeneralSecurityException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(user);
+			out.writeLong(System.currentTimeMillis() + LIFETIME);
+			out.write(mac(bytes.toByteArray()));
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // nao acontece com arrays
+		}
+	}
+
+	/**
+	 * Verifica o ticket apresentado por um utilizador
+	 *
+	 * @param user   o nome com que o cliente se quer autenticar
+	 * @param ticket o ticket apresentado
+	 * @return true se o ticket e valido, nao expirou e pertence ao utilizador
+	 */
+	static boolean verify(String user, byte[] ticket) {
+		if (!enabled() || ticket.length <= MAC_SIZE)
+			return false;
+		try {
+			byte[] body = Arrays.copyOf(ticket, ticket.length - MAC_SIZE);
+			byte[] mac = Arrays.copyOfRange(ticket, body.length, ticket.length);
+			if (!MessageDigest.isEqual(mac, mac(body)))
+				return false;
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+			return in.readUTF().equals(user) && in.readLong() > System.currentTimeMillis();
+		} catch (IOException | GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Calcula o MAC do conteudo de um ticket
+	 *
+	 * @param body o conteudo do ticket
+	 * @return o MAC
+	 * @throws GeneralSecurityException se ocorrer um erro no calculo do MAC
+	 */
+	private static byte[] mac(byte[] body) throws GeneralSecurityException {
+		try {
+			return CryptoService.withMac("HmacSHA256", mac -> {
+				mac.init(KEY);
+				return mac.doFinal(body);
+			});
+		} catch (GeneralSecurityException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new GeneralSecurityException(e);
+		}
+	}
+
+	/**
+	 * Gera a chave usada nos MACs dos tickets
+	 *
+	 * @return a chave gerada
+	 */
+	private static SecretKeySpec newKey() {
+		return new SecretKeySpec(CryptoService.randomBytes(32), "HmacSHA256");
+	}
+
+}
@@ -0,0 +1,47 @@
+package application;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A classe StartupReport regista a duracao de cada fase do arranque do
+ * servidor. As fases podem decorrer em paralelo, pelo que a soma das duracoes
+ * pode ser superior ao tempo total do arranque.
+ */
+final class StartupReport {
+
+	private final long start = System.nanoTime();
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+
+	/**
+	 * Regista o fim de uma fase
+	 *
+	 * @param phase o nome da fase
+	 * @param since o instante em que a fase comecou, obtido com System.nanoTime
+	 */
+	synchronized void record(String phase, long since) {
+		phases.put(phase, System.nanoTime() - since);
+	}
+
+	/**
+	 * Executa uma fase e regista a sua duracao
+	 *
+	 * @param phase o nome da fase
+	 * @param task  a fase a executar
+	 */
+	void time(String phase, Runnable task) {
+		long since = System.nanoTime();
+		task.run();
+		record(phase, since);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("arranque[ms]");
+		for (Map.Entry<String, Long> phase : phases.entrySet())
+			sb.append(' ').append(phase.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+		return sb.append(" total=").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).toString();
+	}
+
+}
@@ -3,18 +3,34 @@ package application;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import protocol.BinaryClientTransport;
+import protocol.ClientTransport;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.LegacyClientTransport;
+import protocol.Opcode;
+import utils.MessageEnvelope;
 import utils.Utils;
 
 /**
@@ -26,8 +42,42 @@ import utils.Utils;
  */
 public class Tintolmarket {
 
+	/**
+	 * Numero maximo de blocos de uma imagem pendentes ao mesmo tempo
+	 */
+	private static final int CHUNK_WINDOW = 8;
+
+	/**
+	 * Ficheiro, na pasta do utilizador, com os hashes das imagens ja obtidas
+	 */
+	private static final String IMAGE_HASHES = "imageHashes.properties";
+
+	/**
+	 * Ficheiro, na pasta do utilizador, com o ultimo ticket de sessao
+	 */
+	private static final String SESSION_TICKET = "session.ticket";
+
+	/**
+	 * Se true, as mensagens sao cifradas diretamente com RSA, como nas versoes
+	 * anteriores, para destinatarios que ainda nao suportam envelopes
+	 */
+	private static final boolean RSA_TALK = "rsa".equals(System.getProperty("tintolmarket.talkCipher"));
+
+	/**
+	 * Se true, o login e as transacoes sao assinados com a chave Ed25519 do
+	 * utilizador (alias nome_ed25519) em vez da chave RSA (alias nome_key). A
+	 * chave RSA continua a ser usada nas mensagens.
+	 */
+	private static final boolean ED25519_KEYS = "ed25519".equals(System.getProperty("tintolmarket.keyType"));
+
 	private static SSLSocket socket;
 	private static String name;
+	private static Properties imageHashes;
+
+	/**
+	 * Envelopes usados nas mensagens desta sessao, por destinatario
+	 */
+	private static final Map<String, MessageEnvelope> envelopes = new HashMap<>();
 
 	public static void main(String[] args) {
 
@@ -56,29 +106,22 @@ public class Tintolmarket {
 			FileInputStream keystorefile = new FileInputStream(keystore);
 			KeyStore keyStore = KeyStore.getInstance("JCEKS");
 			keyStore.load(keystorefile, passwordKeystore.toCharArray());
-			Certificate cert = keyStore.getCertificate(name + "_key"); // extrair o proprio certificado
+			String signingAlias = ED25519_KEYS ? name + "_ed25519" : name + "_key";
+			Certificate cert = keyStore.getCertificate(signingAlias); // extrair o proprio certificado
+			PrivateKey signingKey = (PrivateKey) keyStore.getKey(signingAlias, passwordKeystore.toCharArray());
 			PrivateKey privateKey = (PrivateKey) keyStore.getKey(name + "_key", passwordKeystore.toCharArray());
 
 			// estabelecer ligacao
-			if (serverInfo.length != 1)
-				socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(serverInfo[0],
-						Integer.parseInt(serverInfo[1]));
-			else
-				socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(serverInfo[0], 12345);
-
-			// iniciar streams
-			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			ClientTransport transport = connect(serverInfo);
 
 			// efetuar login
-			login(in, out, privateKey, cert);
+			login(transport, signingKey, cert);
 
 			// interagir com o server
-			interact(in, out, privateKey, trustStore); // alterar atribs
+			interact(transport, signingKey, privateKey, trustStore);
 
 			// fechar ligacoes
-			in.close();
-			out.close();
+			transport.close();
 			socket.close();
 			keystorefile.close();
 			truststorefile.close();
@@ -88,36 +131,66 @@ public class Tintolmarket {
 	}
 
 	/**
-	 * Efetua o login no servidor
+	 * Estabelece a ligacao ao servidor. O protocolo binario e usado sempre que o
+	 * servidor o suporte, exceto se a propriedade tintolmarket.protocol for
+	 * "legacy".
 	 * 
-	 * @param in   ObjectInputStream para ler dados do servidor.
-	 * @param out  ObjectOutputStream para enviar dados para o servidor.
-	 * @param keys as chaves do user
-	 * @param cert o certificado com a chave publica do user
-	 * @throws Exception se ocorrer erro no processo
+	 * @param serverInfo o endereco e, opcionalmente, a porta do servidor
+	 * @return o transporte a usar na comunicacao
+	 * @throws Exception se ocorrer erro na ligacao
 	 */
-	private static void login(ObjectInputStream in, ObjectOutputStream out, PrivateKey key, Certificate cert)
-			throws Exception {
-		out.writeUTF(name);
-		out.flush();
-
-		byte[] nonce = (byte[]) in.readObject();
-
-		byte[] signedNonce = Utils.signByteArray(key, nonce);
-
-		if (in.readBoolean()) { // novo user
-			out.writeObject(nonce);
-			out.writeObject(signedNonce);
-			out.writeObject(cert);
-		} else { // user ja registado
-			out.writeObject(signedNonce);
+	private static ClientTransport connect(String[] serverInfo) throws Exception {
+		socket = openSocket(serverInfo);
+		if (!"legacy".equals(System.getProperty("tintolmarket.protocol"))) {
+			if (FrameCodec.negotiate(socket.getInputStream(), socket.getOutputStream()))
+				return new BinaryClientTransport(socket.getInputStream(), socket.getOutputStream());
+			// servidor antigo, voltar ao protocolo original
+			socket.close();
+			socket = openSocket(serverInfo);
 		}
-		out.flush();
+		return new LegacyClientTransport(socket.getInputStream(), socket.getOutputStream());
+	}
 
-		if (in.readBoolean())
+	/**
+	 * Abre um socket TLS para o servidor
+	 * 
+	 * @param serverInfo o endereco e, opcionalmente, a porta do servidor
+	 * @return o socket criado
+	 * @throws Exception se ocorrer erro na ligacao
+	 */
+	private static SSLSocket openSocket(String[] serverInfo) throws Exception {
+		if (serverInfo.length != 1)
+			return (SSLSocket) SSLSocketFactory.getDefault().createSocket(serverInfo[0],
+					Integer.parseInt(serverInfo[1]));
+		return (SSLSocket) SSLSocketFactory.getDefault().createSocket(serverInfo[0], 12345);
+	}
+
+	/**
+	 * Efetua o login no servidor. Se existir um ticket de sessao de um login
+	 * anterior, este e apresentado ao servidor, que dispensa o desafio com nonce
+	 * enquanto o ticket for valido.
+	 * 
+	 * @param transport o transporte usado na comunicacao com o servidor
+	 * @param key       a chave privada do user
+	 * @param cert      o certificado com a chave publica do user
+	 * @throws Exception se ocorrer erro no processo
+	 */
+	private static void login(ClientTransport transport, PrivateKey key, Certificate cert) throws Exception {
+		File ticketFile = new File(name + "//" + SESSION_TICKET);
+		byte[] ticket = ticketFile.exists() ? Files.readAllBytes(ticketFile.toPath()) : null;
+		if (transport.login(name, key, cert, ticket))
 			System.out.println("Autenticacao bem sucedida!");
 		else
 			System.out.println("Erro na autenticacao!");
+
+		// guardar o novo ticket para o proximo login
+		ticket = transport.getSessionTicket();
+		if (ticket != null) {
+			ticketFile.getParentFile().mkdir();
+			Files.write(ticketFile.toPath(), ticket);
+		} else {
+			ticketFile.delete();
+		}
 	}
 
 	/**
@@ -125,60 +198,170 @@ public class Tintolmarket {
 	 * de texto. Os comandos sao lidos da entrada padrao e enviados ao servidor para
 	 * serem processados. As respostas do servidor sao apresentadas na saida padrao.
 	 *
-	 * @param in         ObjectInputStream para ler dados do servidor.
-	 * @param out        ObjectOutputStream para enviar dados para o servidor.
+	 * @param transport  o transporte usado na comunicacao com o servidor
+	 * @param signingKey a chave privada usada para assinar as transacoes
+	 * @param key        a chave privada usada para decifrar as mensagens
 	 * @param trustStore a truststore partilhada
-	 * @param keyStore   a keystore do cliente
 	 * @throws Exception Se ocorrer algum erro durante a interacao com o servidor.
 	 */
-	private static void interact(ObjectInputStream in, ObjectOutputStream out, PrivateKey key, KeyStore trustStore)
-			throws Exception {
+	private static void interact(ClientTransport transport, PrivateKey signingKey, PrivateKey key,
+			KeyStore trustStore) throws Exception {
 		printCommands();
 		Scanner sc = new Scanner(System.in);
 		boolean exit = false;
 		while (!exit) {
 			System.out.print("\nInsira um comando: ");
 			String line = sc.nextLine();
-			String[] tokens = line.split(" ");
-			boolean image = false;
-			boolean wait = true;
-			if (tokens[0].equals("a") || tokens[0].equals("add")) {
-				wait = add(out, tokens);
-			} else if (tokens[0].equals("s") || tokens[0].equals("sell")) {
-				wait = sell(out, tokens, key);
-			} else if (tokens[0].equals("v") || tokens[0].equals("view")) {
-				wait = view(out, tokens);
-				image = in.readBoolean();
-			} else if (tokens[0].equals("b") || tokens[0].equals("buy")) {
-				wait = buy(out, tokens, key);
-			} else if (tokens[0].equals("w") || tokens[0].equals("wallet")) {
-				wait = wallet(out, tokens);
-			} else if (tokens[0].equals("c") || tokens[0].equals("classify")) {
-				wait = classify(out, tokens);
-			} else if (tokens[0].equals("t") || tokens[0].equals("talk")) {
-				wait = talk(out, trustStore, tokens);
-			} else if (tokens[0].equals("r") || tokens[0].equals("read")) {
-				wait = read(out, in, key, tokens);
-			} else if (tokens[0].equals("l") || tokens[0].equals("list")) {
-				wait = list(out, tokens);
-			} else if (tokens[0].equals("exit")) {
+
+			// os comandos separados por ';' sao enviados sem esperar pelas respostas
+			List<Frame> requests = new ArrayList<>();
+			for (String command : line.split(";")) {
+				String[] tokens = command.trim().split(" ");
+				if (tokens[0].equals("exit")) {
+					exit = true;
+				} else {
+					Frame request = createRequest(tokens, signingKey, trustStore, transport);
+					if (request != null)
+						requests.add(request);
+				}
+			}
+			if (transport.supports(Opcode.BATCH))
+				requests = groupTrades(requests);
+
+			List<CompletableFuture<Frame>> responses = new ArrayList<>();
+			for (Frame request : requests)
+				responses.add(transport.submit(request));
+			for (int i = 0; i < requests.size(); i++)
+				showResponse(requests.get(i), responses.get(i).get(), key, transport);
+			if (exit) {
 				System.out.println("Programa encerrado.");
-				out.writeUTF("exit");
-				exit = true;
-				wait = false;
+				transport.send(new Frame(Opcode.EXIT));
+			}
+		}
+		sc.close();
+	}
+
+	/**
+	 * Cria o pedido correspondente a um comando do utilizador
+	 * 
+	 * @param tokens     o input do user
+	 * @param key        a chave privada usada para assinar as transacoes
+	 * @param trustStore a truststore partilhada
+	 * @param transport  o transporte usado na comunicacao com o servidor
+	 * @return o pedido a enviar, ou null se o comando for invalido
+	 * @throws Exception
+	 */
+	private static Frame createRequest(String[] tokens, PrivateKey key, KeyStore trustStore,
+			ClientTransport transport) throws Exception {
+		Frame request = null;
+		if (tokens[0].equals("a") || tokens[0].equals("add")) {
+			request = add(tokens, transport);
+		} else if (tokens[0].equals("s") || tokens[0].equals("sell")) {
+			request = sell(tokens, key);
+		} else if (tokens[0].equals("v") || tokens[0].equals("view")) {
+			request = view(tokens, transport);
+		} else if (tokens[0].equals("b") || tokens[0].equals("buy")) {
+			request = buy(tokens, key);
+		} else if (tokens[0].equals("w") || tokens[0].equals("wallet")) {
+			request = wallet(tokens);
+		} else if (tokens[0].equals("c") || tokens[0].equals("classify")) {
+			request = classify(tokens);
+		} else if (tokens[0].equals("t") || tokens[0].equals("talk")) {
+			request = talk(trustStore, tokens);
+		} else if (tokens[0].equals("r") || tokens[0].equals("read")) {
+			request = read(tokens);
+		} else if (tokens[0].equals("l") || tokens[0].equals("list")) {
+			request = list(tokens);
+		} else {
+			System.out.println("Comando nao reconhecido");
+			printCommands();
+		}
+		return request;
+	}
+
+	/**
+	 * Junta as compras e vendas consecutivas num unico pedido BATCH, que o
+	 * servidor executa e guarda de uma so vez
+	 * 
+	 * @param requests os pedidos, pela ordem em que foram escritos
+	 * @return os pedidos a enviar
+	 */
+	private static List<Frame> groupTrades(List<Frame> requests) {
+		List<Frame> result = new ArrayList<>();
+		List<Frame> trades = new ArrayList<>();
+		for (Frame request : requests) {
+			if (request.getOpcode() == Opcode.SELL || request.getOpcode() == Opcode.BUY) {
+				trades.add(request);
 			} else {
-				System.out.println("Comando nao reconhecido");
-				printCommands();
-				wait = false;
+				addTrades(result, trades);
+				result.add(request);
 			}
-			out.flush();
+		}
+		addTrades(result, trades);
+		return result;
+	}
 
-			if (wait)
-				System.out.println(in.readUTF());
-			if (image)
-				getImage(in);
+	/**
+	 * Acrescenta as compras e vendas pendentes aos pedidos a enviar, num pedido
+	 * BATCH se forem mais do que uma
+	 * 
+	 * @param result os pedidos a enviar
+	 * @param trades as compras e vendas pendentes, que sao removidas
+	 */
+	private static void addTrades(List<Frame> result, List<Frame> trades) {
+		if (trades.size() == 1) {
+			result.add(trades.get(0));
+		} else if (trades.size() > 1) {
+			Frame batch = new Frame(Opcode.BATCH);
+			for (Frame trade : trades) {
+				batch.add((int) trade.getOpcode());
+				for (Object field : trade.getFields())
+					batch.add(field);
+			}
+			result.add(batch);
+		}
+		trades.clear();
+	}
+
+	/**
+	 * Apresenta a resposta do servidor a um pedido
+	 * 
+	 * @param request  o pedido enviado
+	 * @param response a resposta recebida
+	 * @param key       a chave privada usada para decifrar as mensagens
+	 * @param transport o transporte usado na comunicacao com o servidor
+	 * @throws Exception
+	 */
+	private static void showResponse(Frame request, Frame response, PrivateKey key, ClientTransport transport)
+			throws Exception {
+		if (response.isError()) {
+			System.out.println(response.getString(0));
+		} else if (request.getOpcode() == Opcode.VIEW) {
+			System.out.println(response.getString(0));
+			if (request.size() < 3) {
+				getImage(response.getString(1), response.getBytes(2));
+			} else if (response.size() > 3) { // o cliente nao tem a imagem atual
+				String wine = request.getString(0);
+				String imageName = response.getString(1);
+				try {
+					if (response.getFields().get(3) instanceof Long) // a imagem e obtida por blocos
+						downloadImage(transport, wine, imageName, response.getLong(3), response.getString(2));
+					else
+						getImage(imageName, response.getBytes(3));
+					saveImageHash(wine, imageName, response.getString(2));
+				} catch (IOException e) {
+					System.out.println("Erro ao obter a imagem: " + e.getMessage());
+				}
+			}
+		} else if (request.getOpcode() == Opcode.READ) {
+			System.out.println(decryptMessages(response.getString(0), key));
+		} else if (request.getOpcode() == Opcode.BATCH) {
+			// um par (sucesso, mensagem) por operacao
+			for (int i = 1; i < response.size(); i += 2)
+				System.out.println(response.getString(i));
+		} else {
+			System.out.println(response.getString(0));
 		}
-		sc.close();
 	}
 
 	/**
@@ -198,52 +381,54 @@ public class Tintolmarket {
 						+ "seller.\n" + "\twallet - obtem o saldo atual da carteira.\r\n"
 						+ "\tclassify <wine> <stars> - atribui ao vinho wine uma classificacao de 1 a 5.\r\n"
 						+ "\ttalk <user> <message> - permite enviar uma mensagem privada ao utilizador user.\n"
-						+ "\tread - permite ler as novas mensagens recebidas.");
+						+ "\tread - permite ler as novas mensagens recebidas.\n"
+						+ "Varios comandos separados por ';' sao enviados de uma so vez; as compras e vendas\r\n"
+						+ "consecutivas sao executadas pelo servidor num unico pedido.");
 	}
 
 	/**
 	 * Representa a funcao add
 	 * 
-	 * @param out    stream de output
-	 * @param tokens o input do user
-	 * @return true se bem sucedido, false caso contrario
+	 * @param tokens    o input do user
+	 * @param transport o transporte usado na comunicacao com o servidor
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 * @throws Exception
 	 */
-	private static boolean add(ObjectOutputStream out, String[] tokens) throws Exception {
-		boolean wait = true;
+	private static Frame add(String[] tokens, ClientTransport transport) throws Exception {
+		Frame request = null;
 		if (tokens.length != 3) {
 			System.out.println("O comando add e usado na forma \"add <wine> <image>\"");
-			wait = false;
 		} else {
 			File img = new File(tokens[2]);
-			if (img.exists()) {
-				out.writeUTF("a");
-				out.writeUTF(tokens[1]);
-				out.writeUTF(img.getName());
+			if (img.exists() && transport.supports(Opcode.UPLOAD)) {
+				try {
+					uploadImage(transport, img);
+					request = new Frame(Opcode.ADD).add(tokens[1]).add(img.getName());
+				} catch (IOException e) {
+					System.out.println("Erro ao enviar a imagem: " + e.getMessage());
+				}
+			} else if (img.exists()) { // protocolo original: a imagem segue no pedido
 				byte[] bytes = Files.readAllBytes(img.toPath());
-				out.writeObject(bytes);
+				request = new Frame(Opcode.ADD).add(tokens[1]).add(img.getName()).add(bytes);
 			} else {
 				System.out.println("A imagem " + tokens[2] + " nao existe!");
-				wait = false;
 			}
 		}
-		return wait;
+		return request;
 	}
 
 	/**
 	 * Representa a funcao sell
 	 * 
-	 * @param out        stream de output
 	 * @param tokens     o input do user
 	 * @param privatekey a chave a usar na assinatura
-	 * @return true se bem sucedido, false caso contrario
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 * @throws Exception
 	 */
-	private static boolean sell(ObjectOutputStream out, String[] tokens, PrivateKey privateKey) throws Exception {
-		boolean wait = true;
+	private static Frame sell(String[] tokens, PrivateKey privateKey) throws Exception {
+		Frame request = null;
 		if (tokens.length != 4) {
 			System.out.println("O comando sell e usado na forma \"sell <wine> <value> <quantity>\"");
-			wait = false;
 		} else {
 
 			String wine = tokens[1];
@@ -252,50 +437,42 @@ public class Tintolmarket {
 			String s = String.format("%s%d%.2f", wine, qty, value);
 			byte[] signed = Utils.signString(privateKey, s);
 
-			out.writeUTF("s");
-			out.writeUTF(wine);
-			out.writeDouble(value);
-			out.writeInt(qty);
-			out.writeObject(signed);
+			request = new Frame(Opcode.SELL).add(wine).add(value).add(qty).add(signed);
 		}
-		return wait;
+		return request;
 	}
 
 	/**
 	 * Representa a funcao view
 	 * 
-	 * @param out    stream de output
-	 * @param tokens o input do user
-	 * @return true se bem sucedido, false caso contrario
-	 * @throws Exception
+	 * @param tokens    o input do user
+	 * @param transport o transporte usado na comunicacao com o servidor
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 */
-	private static boolean view(ObjectOutputStream out, String[] tokens) throws Exception {
-		boolean wait = true;
+	private static Frame view(String[] tokens, ClientTransport transport) {
+		Frame request = null;
 		if (tokens.length != 2) {
 			System.out.println("O comando view e usado na forma \"view <wine>\"");
-			wait = false;
 		} else {
-			out.writeUTF("v");
-			out.writeUTF(tokens[1]);
-			out.flush();
+			request = new Frame(Opcode.VIEW).add(tokens[1]);
+			if (transport.supports(Opcode.FETCH))
+				request.add(true).add(imageHash(tokens[1]));
 		}
-		return wait;
+		return request;
 	}
 
 	/**
 	 * Representa a funcao buy
 	 * 
-	 * @param out        stream de output
 	 * @param tokens     o input do user
 	 * @param privateKey a chave a usar na assinatura
-	 * @return true se bem sucedido, false caso contrario
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 * @throws Exception
 	 */
-	private static boolean buy(ObjectOutputStream out, String[] tokens, PrivateKey privateKey) throws Exception {
-		boolean wait = true;
+	private static Frame buy(String[] tokens, PrivateKey privateKey) throws Exception {
+		Frame request = null;
 		if (tokens.length != 4) {
 			System.out.println("O comando buy e usado na forma \"buy <wine> <seller> <quantity>\"");
-			wait = false;
 		} else {
 
 			String wine = tokens[1];
@@ -304,146 +481,342 @@ public class Tintolmarket {
 			String s = String.format("%s%d%s", wine, qty, name);
 			byte[] signed = Utils.signString(privateKey, s);
 
-			out.writeUTF("b");
-			out.writeUTF(wine);
-			out.writeUTF(seller);
-			out.writeInt(qty);
-			out.writeObject(signed);
+			request = new Frame(Opcode.BUY).add(wine).add(seller).add(qty).add(signed);
 		}
-		return wait;
+		return request;
 	}
 
 	/**
 	 * Representa a funcao wallet
 	 * 
-	 * @param out    stream de output
 	 * @param tokens o input do user
-	 * @return true se bem sucedido, false caso contrario
-	 * @throws Exception
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 */
-	private static boolean wallet(ObjectOutputStream out, String[] tokens) throws Exception {
-		boolean wait = true;
+	private static Frame wallet(String[] tokens) {
+		Frame request = null;
 		if (tokens.length != 1) {
 			System.out.println("O comando wallet e usado na forma \"wallet\"");
-			wait = false;
 		} else {
-			out.writeUTF("w");
+			request = new Frame(Opcode.WALLET);
 		}
-		return wait;
+		return request;
 	}
 
 	/**
 	 * Representa a funcao classify
 	 * 
-	 * @param out    stream de output
 	 * @param tokens o input do user
-	 * @return true se bem sucedido, false caso contrario
-	 * @throws Exception
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 */
-	private static boolean classify(ObjectOutputStream out, String[] tokens) throws Exception {
-		boolean wait = true;
+	private static Frame classify(String[] tokens) {
+		Frame request = null;
 		if (tokens.length != 3) {
 			System.out.println("O comando classify e usado na forma \"classify <wine> <stars>\"");
-			wait = false;
 		} else {
-			out.writeUTF("c");
-			out.writeUTF(tokens[1]);
-			out.writeUTF(tokens[2]);
+			request = new Frame(Opcode.CLASSIFY).add(tokens[1]).add(tokens[2]);
 		}
-		return wait;
+		return request;
 	}
 
 	/**
 	 * Representa a funcao talk
 	 * 
-	 * @param out        stream de output
 	 * @param truststore a truststore com os certificados dos utilizadores
 	 * @param tokens     o input do user
-	 * @return true se bem sucedido, false caso contrario
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 * @throws Exception
 	 */
-	private static boolean talk(ObjectOutputStream out, KeyStore trustStore, String[] tokens) throws Exception {
-		boolean wait = true;
+	private static Frame talk(KeyStore trustStore, String[] tokens) throws Exception {
+		Frame request = null;
 		if (tokens.length < 3) {
 			System.out.println("O comando talk e usado na forma \"talk <user> <message>\"");
-			wait = false;
 		} else {
 			StringBuilder sb = new StringBuilder();
 			for (int i = 2; i < tokens.length; i++)
 				sb.append(tokens[i] + " ");
 			Certificate dest = trustStore.getCertificate("newcert_" + tokens[1]);
-			out.writeUTF("t");
-			out.writeUTF(tokens[1]);
-			out.writeUTF(Utils.cipherAssimetricString(Cipher.ENCRYPT_MODE, dest.getPublicKey(), sb.toString()));
+			String message;
+			if (RSA_TALK) {
+				message = Utils.cipherAssimetricString(Cipher.ENCRYPT_MODE, dest.getPublicKey(), sb.toString());
+			} else {
+				// a chave AES e cifrada com RSA uma vez por destinatario
+				MessageEnvelope envelope = envelopes.get(tokens[1]);
+				if (envelope == null) {
+					envelope = new MessageEnvelope(dest.getPublicKey());
+					envelopes.put(tokens[1], envelope);
+				}
+				message = envelope.seal(sb.toString());
+			}
+			request = new Frame(Opcode.TALK).add(tokens[1]).add(message);
 		}
-		return wait;
+		return request;
 	}
 
 	/**
 	 * Representa a funcao read
 	 * 
-	 * @param in     stream de input
-	 * @param out    stream de output
-	 * @param key    a chave privada usada para decifrar as mensagens
 	 * @param tokens o input do user
-	 * @return true se bem sucedido, false caso contrario
-	 * @throws Exception
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 */
-	private static boolean read(ObjectOutputStream out, ObjectInputStream in, PrivateKey key, String[] tokens)
-			throws Exception {
+	private static Frame read(String[] tokens) {
+		Frame request = null;
 		if (tokens.length != 1) {
 			System.out.println("O comando read e usado na forma \"read \"");
 		} else {
-			out.writeUTF("r");
-			out.flush();
-			String recieved = in.readUTF();
-			if (!recieved.equals("Nao tem mensagens")) {
-				String[] users = recieved.split("\r\n");
-				for (String s : users) {
-					s = s.substring(s.indexOf("[") + 1, s.length() - 1);
-					String[] msgs = s.split(", ");
-					for (String msg : msgs)
-						recieved = recieved.replace(msg, Utils.cipherAssimetricString(Cipher.DECRYPT_MODE, key, msg));
+			request = new Frame(Opcode.READ);
+		}
+		return request;
+	}
+
+	/**
+	 * Decifra as mensagens recebidas do servidor. As mensagens em envelope
+	 * enviadas na mesma sessao de um remetente partilham a chave, que e
+	 * decifrada uma unica vez.
+	 * 
+	 * @param recieved a resposta do servidor ao comando read
+	 * @param key      a chave privada usada para decifrar as mensagens
+	 * @return as mensagens decifradas
+	 * @throws Exception
+	 */
+	private static String decryptMessages(String recieved, PrivateKey key) throws Exception {
+		if (!recieved.equals("Nao tem mensagens")) {
+			Map<String, SecretKey> keys = new HashMap<>();
+			String[] users = recieved.split("\r\n");
+			for (String s : users) {
+				s = s.substring(s.indexOf("[") + 1, s.length() - 1);
+				String[] msgs = s.split(", ");
+				for (String msg : msgs) {
+					String text = MessageEnvelope.isEnvelope(msg) ? MessageEnvelope.open(msg, key, keys)
+							: Utils.cipherAssimetricString(Cipher.DECRYPT_MODE, key, msg);
+					recieved = recieved.replace(msg, text);
 				}
 			}
-			System.out.println(recieved);
 		}
-		return false;
+		return recieved;
 	}
 
 	/**
 	 * Representa a funcao talk
 	 * 
-	 * @param out    stream de output
 	 * @param tokens o input do user
-	 * @return true se bem sucedido, false caso contrario
-	 * @throws Exception
+	 * @return o pedido a enviar, ou null se o comando for invalido
 	 */
-	private static boolean list(ObjectOutputStream out, String[] tokens) throws Exception {
-		boolean wait = true;
+	private static Frame list(String[] tokens) {
+		Frame request = null;
 		if (tokens.length != 1) {
 			System.out.println("O comando list e usado na forma \"list\"");
-			wait = false;
 		} else {
-			out.writeUTF("l");
+			request = new Frame(Opcode.LIST);
+		}
+		return request;
+	}
+
+	/**
+	 * Envia uma imagem ao servidor por blocos, retomando um envio anterior da
+	 * mesma imagem que tenha sido interrompido. Sao enviados varios blocos sem esperar pelas
+	 * respostas, ate ao limite de CHUNK_WINDOW.
+	 * 
+	 * @param transport o transporte usado na comunicacao com o servidor
+	 * @param img       a imagem a enviar
+	 * @throws Exception se ocorrer um erro no envio
+	 */
+	private static void uploadImage(ClientTransport transport, File img) throws Exception {
+		Frame status = transport.send(new Frame(Opcode.UPLOAD).add(img.getName()).add(ImageTransfer.hash(img)));
+		if (status.isError())
+			throw new IOException(status.getString(0));
+		long offset = status.getLong(0);
+		if (offset > img.length())
+			offset = 0;
+
+		ArrayDeque<CompletableFuture<Frame>> window = new ArrayDeque<>();
+		byte[] buffer = new byte[FrameCodec.CHUNK_SIZE];
+		try (RandomAccessFile file = new RandomAccessFile(img, "r")) {
+			file.seek(offset);
+			do {
+				int n = Math.max(file.read(buffer), 0);
+				// o buffer pode ser reutilizado assim que a frame e escrita
+				byte[] chunk = n == buffer.length ? buffer : Arrays.copyOf(buffer, n);
+				window.add(transport.submit(new Frame(Opcode.UPLOAD).add(img.getName()).add(offset).add(chunk)));
+				offset += n;
+				if (window.size() >= CHUNK_WINDOW)
+					checkChunk(window.poll().get());
+			} while (offset < img.length());
+		}
+		while (!window.isEmpty())
+			checkChunk(window.poll().get());
+	}
+
+	/**
+	 * Obtem do servidor, por blocos, a imagem de um vinho. Os blocos sao escritos
+	 * num ficheiro parcial, associado ao hash da imagem, a partir do qual a
+	 * transferencia pode ser retomada se for interrompida. A imagem so substitui
+	 * a anterior depois de o seu hash ser verificado.
+	 * 
+	 * @param transport o transporte usado na comunicacao com o servidor
+	 * @param wine      o nome do vinho
+	 * @param imageName o nome da imagem
+	 * @param size      o tamanho da imagem
+	 * @param hash      o hash da imagem, enviado pelo servidor
+	 * @throws Exception se ocorrer um erro na transferencia
+	 */
+	private static void downloadImage(ClientTransport transport, String wine, String imageName, long size,
+			String hash) throws Exception {
+		File dir = new File(name);
+		if (!dir.exists())
+			dir.mkdir();
+		File img = new File(name + "//" + imageName);
+		File part = new File(name + "//" + imageName + ".part");
+		long offset = ImageTransfer.resume(part, hash);
+		if (offset > size)
+			offset = 0;
+
+		try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+			file.setLength(offset);
+			file.seek(offset);
+			ArrayDeque<CompletableFuture<Frame>> window = new ArrayDeque<>();
+			for (long next = offset; next < size || !window.isEmpty();) {
+				if (next < size && window.size() < CHUNK_WINDOW) {
+					window.add(transport
+							.submit(new Frame(Opcode.FETCH).add(wine).add(next).add(FrameCodec.CHUNK_SIZE)));
+					next += FrameCodec.CHUNK_SIZE;
+				} else {
+					// os blocos sao escritos por ordem, o ficheiro parcial nunca tem falhas
+					Frame chunk = checkChunk(window.poll().get());
+					file.write(chunk.getBytes(0));
+				}
+			}
+		}
+		ImageTransfer.finish(part, img);
+	}
+
+	/**
+	 * Verifica a resposta a um bloco de uma imagem
+	 * 
+	 * @param response a resposta do servidor
+	 * @return a propria resposta
+	 * @throws IOException se o servidor respondeu com um erro
+	 */
+	private static Frame checkChunk(Frame response) throws IOException {
+		if (response.isError())
+			throw new IOException(response.getString(0));
+		return response;
+	}
+
+	/**
+	 * Obtem o hash da imagem de um vinho que o cliente ja tem. Se o tamanho ou a
+	 * data de modificacao da imagem mudaram desde que foi guardada, o hash e
+	 * calculado de novo a partir do conteudo, para que o servidor nao deixe de
+	 * enviar uma imagem que foi alterada ou estragada localmente.
+	 * 
+	 * @param wine o nome do vinho
+	 * @return o hash da imagem que o cliente tem, ou uma string vazia se o
+	 *         cliente nao tiver a imagem que obteve do servidor
+	 */
+	private static String imageHash(String wine) {
+		String entry = imageHashes().getProperty(wine);
+		if (entry == null)
+			return "";
+		String[] parts = entry.split(" ", 4);
+		if (parts.length < 4) // entrada sem tamanho nem data, de uma versao anterior
+			return "";
+		File img = new File(name + "//" + parts[3]);
+		if (!img.exists())
+			return "";
+		if (img.length() == Long.parseLong(parts[1]) && img.lastModified() == Long.parseLong(parts[2]))
+			return parts[0];
+		try {
+			if (!ImageTransfer.hash(img).equals(parts[0]))
+				return "";
+			recordImageHash(wine, parts[3], parts[0]);
+			return parts[0];
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * Guarda o hash da imagem de um vinho obtida do servidor, depois de verificar
+	 * que e o hash do ficheiro guardado, junto com o tamanho e a data de
+	 * modificacao do ficheiro
+	 * 
+	 * @param wine      o nome do vinho
+	 * @param imageName o nome da imagem
+	 * @param hash      o hash enviado pelo servidor
+	 * @throws IOException se o ficheiro guardado nao tiver o hash enviado pelo
+	 *                     servidor ou ocorrer um erro ao escrever o ficheiro de
+	 *                     hashes
+	 */
+	private static void saveImageHash(String wine, String imageName, String hash) throws IOException {
+		if (!ImageTransfer.hash(new File(name + "//" + imageName)).equals(hash)) {
+			imageHashes().remove(wine);
+			storeImageHashes();
+			throw new IOException("A imagem " + imageName + " recebida nao corresponde a enviada");
+		}
+		recordImageHash(wine, imageName, hash);
+	}
+
+	/**
+	 * Guarda o hash de uma imagem que o cliente tem, com o tamanho e a data de
+	 * modificacao atuais do ficheiro
+	 * 
+	 * @param wine      o nome do vinho
+	 * @param imageName o nome da imagem
+	 * @param hash      o hash do conteudo da imagem
+	 * @throws IOException se ocorrer um erro ao escrever o ficheiro de hashes
+	 */
+	private static void recordImageHash(String wine, String imageName, String hash) throws IOException {
+		File img = new File(name + "//" + imageName);
+		imageHashes().setProperty(wine, hash + " " + img.length() + " " + img.lastModified() + " " + imageName);
+		storeImageHashes();
+	}
+
+	/**
+	 * Escreve os hashes das imagens no ficheiro IMAGE_HASHES da pasta do
+	 * utilizador
+	 * 
+	 * @throws IOException se ocorrer um erro ao escrever o ficheiro
+	 */
+	private static void storeImageHashes() throws IOException {
+		try (FileOutputStream file = new FileOutputStream(name + "//" + IMAGE_HASHES)) {
+			imageHashes().store(file, null);
+		}
+	}
+
+	/**
+	 * Obtem os hashes das imagens que o cliente ja tem, guardados no ficheiro
+	 * IMAGE_HASHES da pasta do utilizador
+	 * 
+	 * @return os hashes, indexados pelo nome do vinho
+	 */
+	private static Properties imageHashes() {
+		if (imageHashes == null) {
+			imageHashes = new Properties();
+			File file = new File(name + "//" + IMAGE_HASHES);
+			if (file.exists()) {
+				try (FileInputStream in = new FileInputStream(file)) {
+					imageHashes.load(in);
+				} catch (IOException e) {
+					// sem hashes, as imagens sao obtidas de novo
+				}
+			}
 		}
-		return wait;
+		return imageHashes;
 	}
 
 	/**
-	 * Obtem uma imagem do server
+	 * Guarda uma imagem recebida do server
 	 * 
-	 * @param in a stream de input
+	 * @param imageName o nome da imagem
+	 * @param bytes     o conteudo da imagem
 	 * @throws Exception
 	 */
-	private static void getImage(ObjectInputStream in) throws Exception {
+	private static void getImage(String imageName, byte[] bytes) throws Exception {
 		File dir = new File(name);
 		if (!dir.exists())
 			dir.mkdir();
-		File img = new File(name + "//" + in.readUTF());
+		File img = new File(name + "//" + imageName);
 		img.createNewFile();
 		FileOutputStream file = new FileOutputStream(img);
-		byte[] bytes = (byte[]) in.readObject();
 		file.write(bytes, 0, bytes.length);
 		file.close();
 	}
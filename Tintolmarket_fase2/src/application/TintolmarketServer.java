@@ -2,18 +2,22 @@ package application;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
@@ -22,13 +26,7 @@ import catalogs.BlockChain;
 import catalogs.UserCatalog;
 import catalogs.WineAdCatalog;
 import catalogs.WineCatalog;
-import entities.User;
 import exceptions.BlockChainException;
-import exceptions.WineNotFoundException;
-import exceptions.WrongCredentialsException;
-import handlers.AddInfoHandler;
-import handlers.ShowInfoHandler;
-import handlers.TransactionHandler;
 import utils.Utils;
 
 /**
@@ -36,12 +34,21 @@ import utils.Utils;
  */
 public class TintolmarketServer {
 
+	/**
+	 * Se true, os blocos da blockchain sao assinados com a chave Ed25519 do
+	 * servidor (server_ed25519) em vez da chave RSA (server_key)
+	 */
+	private static final boolean ED25519_KEYS = "ed25519".equals(System.getProperty("tintolmarket.keyType"));
+
 	private static SecretKey fileKey;
+	private static SecretKey recordKey;
 	private static KeyStore keyStore;
 
 	public static void main(String[] args) {
 
 		SSLServerSocket serverSocket = null;
+		boolean nio = "nio".equals(System.getProperty("tintolmarket.io"));
+		int port = 12345;
 
 		String filePassword = null;
 		String keyStorePath = null;
@@ -55,43 +62,42 @@ public class TintolmarketServer {
 				passwordKeystore = args[3];
 				System.setProperty("javax.net.ssl.keyStore", keyStorePath);
 				System.setProperty("javax.net.ssl.keyStorePassword", passwordKeystore);
-				serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault()
-						.createServerSocket(Integer.parseInt(args[0]));
+				port = Integer.parseInt(args[0]);
 				filePassword = args[1];
 			} else if (args.length == 3) {
 				keyStorePath = "stores//" + args[1];
 				passwordKeystore = args[2];
 				System.setProperty("javax.net.ssl.keyStore", keyStorePath);
 				System.setProperty("javax.net.ssl.keyStorePassword", passwordKeystore);
-				serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(12345);
 				filePassword = args[0];
 			} else {
 				System.out.println(
 						"Argumentos invalidos. O servidor e iniciado na forma TintolmarketServer <port> <password-cifra> <keystore> <password-keystore>.");
 				System.exit(0);
 			}
+			initTls(keyStorePath, passwordKeystore);
+			if (!nio)
+				serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(port);
 		} catch (Exception e1) {
 			System.out.println("Erro ao inicializar server");
 		}
 
 		try {
+			StartupReport report = new StartupReport();
 
 			File file = new File(keyStorePath);
 			FileInputStream is = new FileInputStream(file);
 			KeyStore keyStore = KeyStore.getInstance("JCEKS");
 			keyStore.load(is, passwordKeystore.toCharArray());
 
-			byte[] salt = { (byte) 0xc9, (byte) 0x36, (byte) 0x78, (byte) 0x99, (byte) 0x52, (byte) 0x3e, (byte) 0xea,
-					(byte) 0xf2 };
-			PBEKeySpec keySpec = new PBEKeySpec(filePassword.toCharArray(), salt, 20);
-			SecretKeyFactory kf = SecretKeyFactory.getInstance("PBEWithHmacSHA256AndAES_128");
-			fileKey = kf.generateSecret(keySpec);
+			long keys = System.nanoTime();
+			initFileKey(filePassword);
+			report.record("chaves", keys);
 
 			try {
-				Utils.verifyIntegrity(new File("txtFiles//userCreds.txt"));
-				Utils.verifyIntegrity(new File("txtFiles//userCatalog.txt"));
-				Utils.verifyIntegrity(new File("txtFiles//wineCatalog.txt"));
-				Utils.verifyIntegrity(new File("txtFiles//wineAdsCatalog.txt"));
+				long since = System.nanoTime();
+				verifyCatalogs();
+				report.record("integridade", since);
 			} catch (Exception e) {
 				System.out.println("Erro ao verificar a integridade dos ficheiros.");
 				System.exit(0);
@@ -99,25 +105,46 @@ public class TintolmarketServer {
 
 			BlockChain blockChain = null;
 			try {
+				long since = System.nanoTime();
 				blockChain = BlockChain.getInstance();
 				blockChain.setKey(null, null);
-				Certificate serverCert = keyStore.getCertificate("server_key");
-				PrivateKey pvk = (PrivateKey) keyStore.getKey("server_key", passwordKeystore.toCharArray());
-				blockChain.setKey(serverCert.getPublicKey(), pvk);
+				// os blocos existentes podem ter sido assinados com qualquer uma das chaves
+				List<PublicKey> serverKeys = new ArrayList<>();
+				for (String alias : new String[] { "server_key", "server_ed25519" }) {
+					Certificate serverCert = keyStore.getCertificate(alias);
+					if (serverCert != null)
+						serverKeys.add(serverCert.getPublicKey());
+				}
+				String signingAlias = ED25519_KEYS ? "server_ed25519" : "server_key";
+				PrivateKey pvk = (PrivateKey) keyStore.getKey(signingAlias, passwordKeystore.toCharArray());
+				if (pvk == null) {
+					System.out.println("Chave " + signingAlias + " inexistente na keystore do servidor.");
+					System.exit(0);
+				}
+				blockChain.setKey(serverKeys, pvk);
 				blockChain.verifyIntegrity();
+				report.record("blockchain", since);
 			} catch (BlockChainException e) {
 				System.out.println("Erro ao verificar a integridade da blockchain.");
 				System.exit(0);
 			}
 
-			UserCatalog.getInstance();
-			WineCatalog.getInstance();
-			WineAdCatalog.getInstance();
+			loadCatalogs(report);
+			Runtime.getRuntime().addShutdownHook(new Thread(Utils::closeStorage, "storage-shutdown"));
+			System.out.println(report);
 
-			while (true) {
-				SSLSocket socket = (SSLSocket) serverSocket.accept();
-				ServerThread st = new ServerThread(socket, blockChain);
-				st.start();
+			ConnectionScheduler scheduler = ConnectionScheduler.fromSystemProperties();
+			if (nio) {
+				new NioServer(port, blockChain, scheduler).serve();
+			} else {
+				while (true) {
+					SSLSocket socket = (SSLSocket) serverSocket.accept();
+					if (!scheduler.submit(
+							new ClientSession(socket.getInputStream(), socket.getOutputStream(), socket, blockChain))) {
+						System.out.println("Ligacao rejeitada: " + scheduler.metrics());
+						socket.close();
+					}
+				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -125,296 +152,119 @@ public class TintolmarketServer {
 		}
 
 		try {
-			serverSocket.close();
+			if (serverSocket != null)
+				serverSocket.close();
 		} catch (IOException e) {
 			System.out.println("Erro ao fechar socket.");
 		}
 	}
 
 	/**
-	 * Obtem a chave usada para cifrar os ficheiros txt
+	 * Define o contexto TLS do servidor apenas com a chave server_key. A keystore
+	 * pode conter tambem a chave Ed25519 usada na blockchain, que nao deve ser
+	 * escolhida para o TLS: os clientes so confiam no certificado RSA do
+	 * servidor.
 	 * 
-	 * @return a chave usada para cifrar os ficheiros txt
+	 * @param keyStorePath     o caminho da keystore do servidor
+	 * @param passwordKeystore a password da keystore
+	 * @throws Exception se ocorrer um erro ao ler a keystore
 	 */
-	public static SecretKey getFileKey() {
-		return fileKey;
-	}
-
-	/**
-	 * Obtem a KeyStore do server
-	 * 
-	 * @return a KeyStore do server
-	 */
-	public static KeyStore getKeyStore() {
-		return keyStore;
-	}
-
-}
-
-/**
- * 
- * Classe ServerThread que representa uma thread para comunicacao com os
- * clientes.
- */
-class ServerThread extends Thread {
-
-	private SSLSocket socket;
-	private BlockChain blockChain;
-
-	public ServerThread(SSLSocket inSoc, BlockChain blockChain) {
-		this.socket = inSoc;
-		this.blockChain = blockChain;
-	}
-
-	@Override
-	public void run() {
-
-		System.out.println("Cliente conectado");
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
-
-		try {
-			// iniciar streams
-			out = new ObjectOutputStream(socket.getOutputStream());
-			in = new ObjectInputStream(socket.getInputStream());
-
-			// fazer login do user
-			UserCatalog userCatalog = UserCatalog.getInstance();
-			String name = userCatalog.login(in, out);
-			if (name != null) {
-				out.writeBoolean(true);
-				out.flush();
-				interact(userCatalog.getUserByName(name), socket, in, out);
-				System.out.println("Cliente desconectado");
-			}
-
-		} catch (WrongCredentialsException e) {
-			try {
-				System.out.println(e.getMessage());
-				out.writeBoolean(false);
-				out.flush();
-			} catch (IOException e1) {
-				System.out.println("Ocorreu um erro na comunicacao");
-			}
-		} catch (Exception e) {
-			System.out.println("Cliente desconectado");
-		} finally {
-			try {
-				// fechar ligacoes
-				in.close();
-				out.close();
-				socket.close();
-			} catch (IOException e) {
-				System.out.println("Ocorreu um erro na comunicacao");
-			}
+	private static void initTls(String keyStorePath, String passwordKeystore) throws Exception {
+		char[] password = passwordKeystore.toCharArray();
+		KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(password);
+		KeyStore stored = KeyStore.getInstance("JCEKS");
+		try (FileInputStream is = new FileInputStream(keyStorePath)) {
+			stored.load(is, password);
 		}
+		KeyStore tls = KeyStore.getInstance("JCEKS");
+		tls.load(null, null);
+		tls.setEntry("server_key", stored.getEntry("server_key", protection), protection);
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(tls, password);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		SSLContext.setDefault(context);
 	}
 
 	/**
-	 * Metodo para interagir com o usuario apos a autenticacao bem sucedida.
+	 * Gera, a partir da password, as chaves usadas para cifrar os ficheiros txt:
+	 * a chave PBE das versoes anteriores, usada tambem nos HMACs, e a chave AES
+	 * das linhas AES-GCM, derivada uma unica vez com PBKDF2
 	 * 
-	 * @param user instancia do usuario logado
-	 * @param in   ObjectInputStream para receber informacoes do cliente
-	 * @param out  ObjectOutputStream para enviar informacoes ao cliente
-	 * @throws Exception em caso de erro na comunicacao com o cliente
+	 * @param filePassword a password de cifra
+	 * @throws GeneralSecurityException se ocorrer um erro ao gerar a chave
 	 */
-	private void interact(User user, SSLSocket socket, ObjectInputStream in, ObjectOutputStream out) throws Exception {
-		boolean exit = false;
-		while (!exit) {
-			boolean image = false;
-			try {
-				String command = in.readUTF();
-				switch (command) {
-				case "a":
-					add(in, out);
-					break;
-				case "s":
-					sell(in, out, user);
-					break;
-				case "v":
-					image = true;
-					view(in, out);
-					break;
-				case "b":
-					buy(in, out, user);
-					break;
-				case "w":
-					wallet(out, user);
-					break;
-				case "c":
-					classify(in, out, user);
-					break;
-				case "t":
-					talk(in, out, user);
-					break;
-				case "r":
-					read(out, user);
-					break;
-				case "l":
-					list(out);
-					break;
-				default:
-					exit = true;
-					break;
-				}
-				out.flush();
-				image = false;
-			} catch (WineNotFoundException e) {
-				if (image)
-					out.writeBoolean(false);
-				out.writeUTF(e.getMessage());
-				out.flush();
-			} catch (Exception e) {
-				out.writeUTF(e.getMessage());
-				out.flush();
-			}
-		}
-	}
-
-	/**
-	 * Representa a funcao add
-	 * 
-	 * @param in  a stream de input
-	 * @param out a stream de output
-	 * @throws Exception
-	 */
-	private static void add(ObjectInputStream in, ObjectOutputStream out) throws Exception {
-		String arg1 = in.readUTF();
-		File imgFiles = new File("imgFiles");
-		if (!imgFiles.exists())
-			imgFiles.mkdir();
-		File image = new File("imgFiles//" + in.readUTF()); // ler nome da imagem
-		FileOutputStream file = new FileOutputStream(image);
-		byte[] bytes = (byte[]) in.readObject();
-		file.write(bytes, 0, bytes.length);
-		file.close();
-		AddInfoHandler.add(arg1, image);
-		out.writeUTF(String.format("Vinho %s adicionado com sucesso!", arg1));
-	}
-
-	/**
-	 * Representa a funcao sell
-	 * 
-	 * @param in   a stream de input
-	 * @param out  a stream de output
-	 * @param user o utilizador em questao
-	 * @throws Exception
-	 */
-	private static void sell(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
-		String wine = in.readUTF();
-		double price = in.readDouble();
-		int qty = in.readInt();
-		byte[] signature = (byte[]) in.readObject();
-
-		TransactionHandler.sell(user, wine, price, qty, signature);
-		out.writeUTF(
-				String.format("%d unidade(s) de vinho %s colocada(s) a venda por %.2f com sucesso!", qty, wine, price));
-	}
-
-	/**
-	 * Representa a funcao view
-	 * 
-	 * @param in  a stream de input
-	 * @param out a stream de output
-	 * @throws Exception
-	 */
-	private static void view(ObjectInputStream in, ObjectOutputStream out) throws Exception {
-		String arg1 = in.readUTF();
-		String[] result = ShowInfoHandler.view(arg1);
-		out.writeBoolean(true);
-		out.writeUTF(result[0]); // enviar printWine
-		File img = new File(result[1]);
-		out.writeUTF(img.getName());
-		byte[] buffer = Files.readAllBytes(img.toPath());
-		out.writeObject(buffer);
+	static void initFileKey(String filePassword) throws GeneralSecurityException {
+		byte[] salt = { (byte) 0xc9, (byte) 0x36, (byte) 0x78, (byte) 0x99, (byte) 0x52, (byte) 0x3e, (byte) 0xea,
+				(byte) 0xf2 };
+		PBEKeySpec keySpec = new PBEKeySpec(filePassword.toCharArray(), salt, 20);
+		SecretKeyFactory kf = SecretKeyFactory.getInstance("PBEWithHmacSHA256AndAES_128");
+		fileKey = kf.generateSecret(keySpec);
+
+		PBEKeySpec aesSpec = new PBEKeySpec(filePassword.toCharArray(), salt, 65536, 128);
+		byte[] aesKey = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(aesSpec).getEncoded();
+		recordKey = new SecretKeySpec(aesKey, "AES");
 	}
 
 	/**
-	 * Representa a funcao buy
+	 * Verifica a integridade dos ficheiros dos catalogos e dos seus registos de
+	 * alteracoes, depois de terminar as substituicoes interrompidas de snapshots
+	 * e registos
 	 * 
-	 * @param in   a stream de input
-	 * @param out  a stream de output
-	 * @param user o utilizador em questao
-	 * @throws Exception
+	 * @throws Exception se algum ficheiro tiver sido alterado
 	 */
-	private static void buy(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
-		String wine = in.readUTF();
-		String seller = in.readUTF();
-		int num = in.readInt();
-		byte[] signature = (byte[]) in.readObject();
-
-		TransactionHandler.buy(user, wine, seller, num, signature);
-		out.writeUTF(String.format("O utilizador comprou %d unidades de vinho %s", num, wine));
-	}
-
-	/**
-	 * Representa a funcao wallet
-	 * 
-	 * @param out  a stream de output
-	 * @param user o utilizador em questao
-	 * @throws Exception
-	 */
-	private static void wallet(ObjectOutputStream out, User user) throws Exception {
-		out.writeUTF(ShowInfoHandler.wallet(user));
+	static void verifyCatalogs() throws Exception {
+		for (String catalog : new String[] { "userCreds", "userCatalog", "wineCatalog", "wineAdsCatalog" }) {
+			Utils.recoverReplacement(new File("txtFiles//" + catalog + ".txt"));
+			Utils.recoverReplacement(new File("txtFiles//" + catalog + ".log"));
+			Utils.verifyIntegrity(new File("txtFiles//" + catalog + ".txt"));
+			Utils.verifyIntegrity(new File("txtFiles//" + catalog + ".log"));
+		}
 	}
 
 	/**
-	 * Representa a funcao classify
+	 * Carrega os catalogos em paralelo, na ForkJoinPool comum. Os catalogos de
+	 * utilizadores e de vinhos sao independentes e carregados ao mesmo tempo; o
+	 * de anuncios, que referencia utilizadores e vinhos, e carregado quando ambos
+	 * estiverem prontos.
 	 * 
-	 * @param in   a stream de input
-	 * @param out  a stream de output
-	 * @param user o utilizador em questao
-	 * @throws Exception
+	 * @param report o relatorio onde e registada a duracao de cada catalogo
 	 */
-	private static void classify(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
-		String arg1 = in.readUTF();
-		int num = Integer.parseInt(in.readUTF());
-		AddInfoHandler.classify(user, arg1, num);
-		out.writeUTF(String.format("Atribuiu %d estrelas ao vinho %s", num, arg1));
+	static void loadCatalogs(StartupReport report) {
+		CompletableFuture<Void> users = CompletableFuture
+				.runAsync(() -> report.time("utilizadores", UserCatalog::getInstance));
+		CompletableFuture<Void> wines = CompletableFuture
+				.runAsync(() -> report.time("vinhos", WineCatalog::getInstance));
+		CompletableFuture.allOf(users, wines).thenRun(() -> report.time("anuncios", WineAdCatalog::getInstance))
+				.join();
 	}
 
 	/**
-	 * Representa a funcao talk
+	 * Obtem a chave usada para cifrar os ficheiros txt
 	 * 
-	 * @param in   a stream de input
-	 * @param out  a stream de output
-	 * @param user o utilizador em questao
-	 * @throws Exception
+	 * @return a chave usada para cifrar os ficheiros txt
 	 */
-	private static void talk(ObjectInputStream in, ObjectOutputStream out, User user) throws Exception {
-		String recipient = in.readUTF();
-		String message = in.readUTF();
-		AddInfoHandler.talk(user, recipient, message);
-		out.writeUTF(String.format("Enviou uma mensagem ao utilizador %s", recipient));
+	public static SecretKey getFileKey() {
+		return fileKey;
 	}
 
 	/**
-	 * Representa a funcao read
+	 * Obtem a chave AES usada para cifrar as linhas dos ficheiros txt com AES-GCM
 	 * 
-	 * @param out  a stream de output
-	 * @param user o utilizador em questao
-	 * @throws Exception
+	 * @return a chave AES
 	 */
-	private static void read(ObjectOutputStream out, User user) throws Exception {
-		out.writeUTF(ShowInfoHandler.read(user));
+	public static SecretKey getRecordKey() {
+		return recordKey;
 	}
 
 	/**
-	 * Representa a funcao list
+	 * Obtem a KeyStore do server
 	 * 
-	 * @param out a stream de output
-	 * @throws Exception
+	 * @return a KeyStore do server
 	 */
-	private void list(ObjectOutputStream out) {
-		try {
-			out.writeUTF(ShowInfoHandler.list(blockChain));
-		} catch (Exception e) {
-			try {
-				out.writeUTF(e.getMessage());
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
-		}
+	public static KeyStore getKeyStore() {
+		return keyStore;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,562 @@
+package application;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A classe TlsConnection representa uma ligacao TLS nao bloqueante usada pelo
+ * NioServer. O event loop trata do handshake e da cifra e decifra dos
+ * registos TLS, enquanto a sessao do cliente ve apenas streams bloqueantes com
+ * os dados em claro.
+ *
+ * As sessoes esperam por dados ou por espaco para escrever em Conditions de
+ * ReentrantLocks, e nao em monitores: uma virtual thread a espera num monitor
+ * fica presa a sua carrier thread, enquanto uma virtual thread a espera numa
+ * Condition liberta-a.
+ */
+class TlsConnection implements Closeable {
+
+	/**
+	 * Numero maximo de bytes cifrados a espera de serem enviados antes de as
+	 * escritas da sessao bloquearem
+	 */
+	private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+	/**
+	 * Numero maximo de bytes em claro num registo TLS
+	 */
+	private static final int MAX_RECORD_DATA = 16 * 1024;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final NioServer.EventLoop loop;
+	private final Executor tlsWorkers;
+	private SelectionKey key;
+
+	// usados apenas na thread do event loop
+	private ByteBuffer netIn;
+	private boolean taskRunning;
+	private boolean closeAfterFlush;
+
+	// protegidos por readLock
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final Condition readable = readLock.newCondition();
+	private ByteBuffer appIn;
+	private boolean inputClosed;
+	private boolean readPaused;
+
+	// protegidos por writeLock
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final Condition writable = writeLock.newCondition();
+	private final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<>();
+	private ByteBuffer wrapBuffer;
+	private int pendingBytes;
+	private boolean handshakeDone;
+
+	private volatile boolean closed;
+	private volatile boolean closing;
+
+	private final InputStream in = new TlsInputStream();
+	private final OutputStream out = new TlsOutputStream();
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param channel    o canal da ligacao, em modo nao bloqueante
+	 * @param engine     o SSLEngine da ligacao
+	 * @param loop       o event loop responsavel pela ligacao
+	 * @param tlsWorkers executor das tarefas pesadas do handshake
+	 */
+	TlsConnection(SocketChannel channel, SSLEngine engine, NioServer.EventLoop loop, Executor tlsWorkers) {
+		this.channel = channel;
+		this.engine = engine;
+		this.loop = loop;
+		this.tlsWorkers = tlsWorkers;
+		int packetSize = engine.getSession().getPacketBufferSize();
+		int appSize = engine.getSession().getApplicationBufferSize();
+		this.netIn = ByteBuffer.allocate(packetSize);
+		this.wrapBuffer = ByteBuffer.allocate(packetSize);
+		this.appIn = ByteBuffer.allocate(2 * appSize);
+	}
+
+	/**
+	 * Obtem a stream com os dados recebidos do cliente
+	 *
+	 * @return a stream de input
+	 */
+	InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Obtem a stream usada para enviar dados ao cliente. A stream e tambem um
+	 * WritableByteChannel.
+	 *
+	 * @return a stream de output
+	 */
+	OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Regista a ligacao no selector e inicia o handshake. Executado na thread do
+	 * event loop.
+	 */
+	void start() {
+		try {
+			key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+			engine.beginHandshake();
+			process();
+		} catch (IOException e) {
+			abort();
+		}
+	}
+
+	/**
+	 * Trata de dados disponiveis no canal. Executado na thread do event loop.
+	 */
+	void onReadable() {
+		try {
+			if (channel.read(netIn) < 0) {
+				onEndOfStream();
+				return;
+			}
+			process();
+		} catch (IOException e) {
+			abort();
+		}
+	}
+
+	/**
+	 * Envia os dados pendentes quando o canal o permite. Executado na thread do
+	 * event loop.
+	 */
+	void onWritable() {
+		try {
+			flush();
+			updateInterest();
+		} catch (IOException e) {
+			abort();
+		}
+	}
+
+	/**
+	 * Fecha a ligacao, enviando o close_notify ao cliente
+	 */
+	@Override
+	public void close() {
+		if (closing)
+			return;
+		closing = true;
+		loop.execute(() -> {
+			try {
+				engine.closeOutbound();
+				while (!engine.isOutboundDone() && wrap(EMPTY) > 0)
+					;
+				closeAfterFlush = true;
+				flush();
+				updateInterest();
+			} catch (IOException e) {
+				abort();
+			}
+		});
+	}
+
+	/**
+	 * Avanca o handshake e decifra os registos recebidos, enquanto for possivel
+	 *
+	 * @throws IOException se ocorrer um erro no TLS
+	 */
+	private void process() throws IOException {
+		while (!taskRunning && !closed) {
+			HandshakeStatus hs = engine.getHandshakeStatus();
+			if (hs == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+			} else if (hs == HandshakeStatus.NEED_WRAP) {
+				if (wrap(EMPTY) == 0 && engine.isOutboundDone())
+					break;
+			} else if (!unwrap()) {
+				break;
+			}
+		}
+		if (!closed && engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+			writeLock.lock();
+			try {
+				if (!handshakeDone) {
+					handshakeDone = true;
+					writable.signalAll();
+				}
+			} finally {
+				writeLock.unlock();
+			}
+		}
+		flush();
+		updateInterest();
+	}
+
+	/**
+	 * Decifra um registo TLS recebido
+	 *
+	 * @return true se houve progresso, false se sao precisos mais dados
+	 * @throws IOException se ocorrer um erro no TLS
+	 */
+	private boolean unwrap() throws IOException {
+		SSLEngineResult res;
+		netIn.flip();
+		readLock.lock();
+		try {
+			if (readPaused) {
+				netIn.compact();
+				return false;
+			}
+			res = engine.unwrap(netIn, appIn);
+			if (res.bytesProduced() > 0)
+				readable.signalAll();
+		} finally {
+			readLock.unlock();
+		}
+		netIn.compact();
+
+		switch (res.getStatus()) {
+		case BUFFER_UNDERFLOW:
+			int packetSize = engine.getSession().getPacketBufferSize();
+			if (netIn.capacity() < packetSize) {
+				ByteBuffer bigger = ByteBuffer.allocate(packetSize);
+				netIn.flip();
+				bigger.put(netIn);
+				netIn = bigger;
+			}
+			return false;
+		case BUFFER_OVERFLOW:
+			readLock.lock();
+			try {
+				if (appIn.position() == 0) {
+					appIn = ByteBuffer.allocate(2 * engine.getSession().getApplicationBufferSize());
+					return true;
+				}
+				// a sessao ainda nao consumiu os dados, parar de ler do canal
+				readPaused = true;
+			} finally {
+				readLock.unlock();
+			}
+			return false;
+		case CLOSED:
+			onEndOfStream();
+			return false;
+		default:
+			HandshakeStatus hs = engine.getHandshakeStatus();
+			return res.bytesConsumed() > 0 || hs == HandshakeStatus.NEED_TASK || hs == HandshakeStatus.NEED_WRAP;
+		}
+	}
+
+	/**
+	 * Cifra os dados fornecidos e coloca os registos resultantes na fila de
+	 * envio
+	 *
+	 * @param src os dados a cifrar
+	 * @return o numero de bytes cifrados produzidos
+	 * @throws IOException se a ligacao estiver fechada ou ocorrer um erro no TLS
+	 */
+	private int wrap(ByteBuffer src) throws IOException {
+		int produced = 0;
+		writeLock.lock();
+		try {
+			do {
+				wrapBuffer.clear();
+				SSLEngineResult res = engine.wrap(src, wrapBuffer);
+				if (res.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					wrapBuffer = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+					continue;
+				}
+				wrapBuffer.flip();
+				if (wrapBuffer.hasRemaining()) {
+					ByteBuffer record = ByteBuffer.allocate(wrapBuffer.remaining());
+					record.put(wrapBuffer).flip();
+					outQueue.add(record);
+					pendingBytes += record.remaining();
+					produced += record.remaining();
+				}
+				if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+					if (src.hasRemaining())
+						throw new IOException("Ligacao fechada");
+					break;
+				}
+			} while (src.hasRemaining());
+		} finally {
+			writeLock.unlock();
+		}
+		return produced;
+	}
+
+	/**
+	 * Executa as tarefas pesadas do handshake fora do event loop
+	 */
+	private void runDelegatedTasks() {
+		taskRunning = true;
+		tlsWorkers.execute(() -> {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null)
+				task.run();
+			loop.execute(() -> {
+				taskRunning = false;
+				try {
+					process();
+				} catch (IOException e) {
+					abort();
+				}
+			});
+		});
+	}
+
+	/**
+	 * Escreve no canal os registos pendentes, sem bloquear
+	 *
+	 * @throws IOException se ocorrer um erro na escrita
+	 */
+	private void flush() throws IOException {
+		boolean empty;
+		writeLock.lock();
+		try {
+			while (!outQueue.isEmpty()) {
+				ByteBuffer record = outQueue.peek();
+				pendingBytes -= channel.write(record);
+				if (record.hasRemaining())
+					break;
+				outQueue.poll();
+			}
+			empty = outQueue.isEmpty();
+			writable.signalAll();
+		} finally {
+			writeLock.unlock();
+		}
+		if (empty && closeAfterFlush)
+			abort();
+	}
+
+	/**
+	 * Atualiza os eventos em que o event loop esta interessado
+	 */
+	private void updateInterest() {
+		if (key == null || !key.isValid())
+			return;
+		int ops = 0;
+		readLock.lock();
+		try {
+			if (!readPaused && !inputClosed)
+				ops |= SelectionKey.OP_READ;
+		} finally {
+			readLock.unlock();
+		}
+		writeLock.lock();
+		try {
+			if (!outQueue.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+		} finally {
+			writeLock.unlock();
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Trata do fim dos dados enviados pelo cliente
+	 */
+	private void onEndOfStream() {
+		try {
+			engine.closeInbound();
+		} catch (SSLException e) {
+			// o cliente fechou a ligacao sem enviar close_notify
+		}
+		readLock.lock();
+		try {
+			inputClosed = true;
+			readable.signalAll();
+		} finally {
+			readLock.unlock();
+		}
+		if (!handshakeDone())
+			abort();
+		else
+			updateInterest();
+	}
+
+	/**
+	 * Fecha imediatamente o canal e acorda as threads a espera da ligacao
+	 */
+	private void abort() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// o canal ja esta fechado
+		}
+		readLock.lock();
+		try {
+			inputClosed = true;
+			readable.signalAll();
+		} finally {
+			readLock.unlock();
+		}
+		writeLock.lock();
+		try {
+			outQueue.clear();
+			pendingBytes = 0;
+			writable.signalAll();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Indica se o handshake inicial ja terminou
+	 *
+	 * @return true se o handshake terminou
+	 */
+	private boolean handshakeDone() {
+		writeLock.lock();
+		try {
+			return handshakeDone;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Stream bloqueante com os dados decifrados pelo event loop
+	 */
+	private class TlsInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int n;
+			boolean resume;
+			readLock.lock();
+			try {
+				while (appIn.position() == 0 && !inputClosed)
+					readable.await();
+				if (appIn.position() == 0)
+					return -1;
+				appIn.flip();
+				n = Math.min(len, appIn.remaining());
+				appIn.get(b, off, n);
+				appIn.compact();
+				resume = readPaused;
+				readPaused = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Leitura interrompida");
+			} finally {
+				readLock.unlock();
+			}
+			if (resume) {
+				loop.execute(() -> {
+					try {
+						process();
+					} catch (IOException e) {
+						abort();
+					}
+				});
+			}
+			return n;
+		}
+
+		@Override
+		public int available() {
+			readLock.lock();
+			try {
+				return appIn.position();
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			// a ligacao e fechada pela sessao atraves de TlsConnection.close()
+		}
+	}
+
+	/**
+	 * Stream que cifra os dados da sessao e os entrega ao event loop. Tambem
+	 * aceita ByteBuffers, que sao cifrados diretamente, sem serem copiados para
+	 * um array; isto permite enviar o conteudo de um ficheiro mapeado em memoria.
+	 */
+	private class TlsOutputStream extends OutputStream implements WritableByteChannel {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			write(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int written = src.remaining();
+			while (src.hasRemaining()) {
+				// cifrar um registo de cada vez, respeitando o limite de bytes pendentes
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + Math.min(slice.remaining(), MAX_RECORD_DATA));
+				boolean wasEmpty;
+				writeLock.lock();
+				try {
+					while (!closed && (!handshakeDone || pendingBytes > MAX_PENDING_OUTPUT))
+						writable.await();
+					if (closed || closing)
+						throw new IOException("Ligacao fechada");
+					wasEmpty = outQueue.isEmpty();
+					wrap(slice);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Escrita interrompida");
+				} finally {
+					writeLock.unlock();
+				}
+				src.position(slice.position());
+				// o event loop so e avisado quando a fila deixa de estar vazia; enquanto
+				// houver registos pendentes, o proprio event loop continua a envia-los
+				if (wasEmpty)
+					loop.execute(TlsConnection.this::onWritable);
+			}
+			return written;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed && !closing;
+		}
+
+		@Override
+		public void close() {
+			// a ligacao e fechada pela sessao atraves de TlsConnection.close()
+		}
+	}
+
+}
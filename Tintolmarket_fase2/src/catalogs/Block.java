@@ -7,13 +7,14 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.Arrays;
+import java.util.List;
 
 import entities.Transaction;
 import exceptions.BlockChainException;
+import utils.CryptoService;
+import utils.GroupCommit;
 import utils.Utils;
 
 /**
@@ -71,11 +72,11 @@ public class Block implements Serializable {
 	 * Verifica se o bloco atual e valido, verificando o hash e assinatura, se
 	 * estiver completo
 	 * 
-	 * @param pk a chave publica usada na validacao da assinatura
+	 * @param pks as chaves publicas aceites na validacao da assinatura
 	 * @return true se o bloco e valido, false caso contrario
 	 * @throws BlockChainException se ocorrer um erro na validacao da assinatura
 	 */
-	public boolean isValid(PublicKey pk) throws BlockChainException {
+	public boolean isValid(List<PublicKey> pks) throws BlockChainException {
 		boolean result = true;
 		for (byte b : previousHash) {
 			if (b != 0) {
@@ -89,7 +90,7 @@ public class Block implements Serializable {
 			}
 		}
 		if (result && isFull()) {
-			result = Utils.verifySignature(pk, generate32ByteHash(false), signature);
+			result = Utils.verifySignature(pks, generate32ByteHash(false), signature);
 		}
 		return result;
 	}
@@ -101,11 +102,22 @@ public class Block implements Serializable {
 	 * @throws Exception se ocorrer um erro
 	 */
 	public void add(Transaction ts) throws Exception {
-		if (!isFull()) {
-			transactions[transactionCount] = ts;
-			transactionCount++;
+		if (append(ts))
 			save();
-		}
+	}
+
+	/**
+	 * Adiciona uma transacao ao bloco sem o guardar no seu ficheiro
+	 * 
+	 * @param ts a transacao a adicionar
+	 * @return true se a transacao foi adicionada, false se o bloco estava cheio
+	 */
+	boolean append(Transaction ts) {
+		if (isFull())
+			return false;
+		transactions[transactionCount] = ts;
+		transactionCount++;
+		return true;
 	}
 
 	/**
@@ -150,7 +162,7 @@ public class Block implements Serializable {
 	/**
 	 * Guarda o bloco no seu ficheiro .blk
 	 */
-	private void save() {
+	void save() {
 		try {
 			File blockFile = new File("blockChain//block_" + num + ".blk");
 			if (!blockFile.exists())
@@ -160,6 +172,7 @@ public class Block implements Serializable {
 			objOut.writeObject(this);
 			objOut.close();
 			fileOut.close();
+			GroupCommit.changed(blockFile);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -197,10 +210,8 @@ public class Block implements Serializable {
 			String s = Arrays.toString(previousHash) + num + transactionCount + Arrays.toString(transactions);
 			if (includeSignature)
 				s += Arrays.toString(signature);
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] hash = digest.digest(s.getBytes());
-			return hash;
-		} catch (NoSuchAlgorithmException e) {
+			return CryptoService.digest("SHA-256", s.getBytes());
+		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		return null;
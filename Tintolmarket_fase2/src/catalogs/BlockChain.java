@@ -19,7 +19,7 @@ public class BlockChain {
 
 	private static BlockChain instance;
 	private List<Block> blocks;
-	private PublicKey serverPublicKey;
+	private List<PublicKey> serverPublicKeys;
 	private PrivateKey serverPrivateKey;
 
 	/**
@@ -41,13 +41,16 @@ public class BlockChain {
 	}
 
 	/**
-	 * Prepara as keys a serem usadas nas assinaturas da blockchain
+	 * Prepara as keys a serem usadas nas assinaturas da blockchain. Os blocos
+	 * novos sao assinados com a chave privada dada; os blocos existentes sao
+	 * aceites se tiverem sido assinados com qualquer uma das chaves publicas, o
+	 * que permite mudar a chave do servidor de RSA para Ed25519.
 	 * 
-	 * @param pbk chave publica
-	 * @param pvk chave privada
+	 * @param pbks chaves publicas aceites
+	 * @param pvk  chave privada
 	 */
-	public void setKey(PublicKey pbk, PrivateKey pvk) {
-		this.serverPublicKey = pbk;
+	public void setKey(List<PublicKey> pbks, PrivateKey pvk) {
+		this.serverPublicKeys = pbks;
 		this.serverPrivateKey = pvk;
 	}
 
@@ -69,7 +72,7 @@ public class BlockChain {
 				blocks.add(a);
 			} else {
 				Block block = Block.readFromFile(blockFile);
-				if (block.isValid(serverPublicKey))
+				if (block.isValid(serverPublicKeys))
 					blocks.add(block);
 				else
 					throw new BlockChainException("Erro ao recriar blockchain");
@@ -77,7 +80,7 @@ public class BlockChain {
 				while (block.isFull()) {
 					blockNum++;
 					block = Block.readFromFile(new File("blockChain//block_" + blockNum + ".blk"));
-					if (block.isValid(serverPublicKey))
+					if (block.isValid(serverPublicKeys))
 						blocks.add(block);
 					else
 						throw new BlockChainException("Erro ao recriar blockchain");
@@ -97,7 +100,7 @@ public class BlockChain {
 	 * @param ts a transacao a adicionar
 	 * @throws Exception
 	 */
-	public void addTransaction(Transaction ts) throws Exception {
+	public synchronized void addTransaction(Transaction ts) throws Exception {
 		Block last = blocks.get(blocks.size() - 1);
 		last.add(ts);
 		if (last.isFull()) {
@@ -107,6 +110,29 @@ public class BlockChain {
 		}
 	}
 
+	/**
+	 * Adiciona varias transacoes a BlockChain, pela ordem dada. Cada bloco
+	 * alterado e guardado apenas uma vez, em vez de uma vez por transacao.
+	 * 
+	 * @param transactions as transacoes a adicionar
+	 */
+	public synchronized void addTransactions(List<Transaction> transactions) {
+		Block last = blocks.get(blocks.size() - 1);
+		boolean changed = false;
+		for (Transaction ts : transactions) {
+			last.append(ts);
+			changed = true;
+			if (last.isFull()) {
+				signBlock(last); // guarda o bloco completo
+				last = new Block(blocks.size() + 1, last.generate32ByteHash(true));
+				blocks.add(last);
+				changed = false;
+			}
+		}
+		if (changed)
+			last.save();
+	}
+
 	/**
 	 * Assina um bloco da blockchain
 	 * 
@@ -124,7 +150,7 @@ public class BlockChain {
 	 * @return uma string com uma representacao textual das transacoes
 	 * @throws BlockChainException
 	 */
-	public String listAllTransactions() throws BlockChainException {
+	public synchronized String listAllTransactions() throws BlockChainException {
 		String result = "";
 		for (Block b : blocks)
 			result += b.toString();
@@ -1,28 +1,27 @@
 package catalogs;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.security.KeyStore;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateFactory;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
-
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import application.TintolmarketServer;
 import entities.User;
 import exceptions.WrongCredentialsException;
+import utils.CryptoService;
+import utils.GroupCommit;
+import utils.LegacyFormat;
+import utils.RecordReader;
+import utils.RecordWriter;
 import utils.Utils;
 
 /**
@@ -34,17 +33,19 @@ public class UserCatalog {
 
 	private static UserCatalog instance;
 	private File userInfo;
-	private List<User> users;
+	private Map<String, User> users;
+	private Map<String, String> credentials;
+	private Map<String, CachedKey> publicKeys;
 	private static KeyStore keyStore;
-	private static SecretKey fileKey;
 
 	/**
 	 * Construtor privado da classe UserCatalog.
 	 */
 	private UserCatalog() {
 		keyStore = TintolmarketServer.getKeyStore();
-		fileKey = TintolmarketServer.getFileKey();
-		users = new ArrayList<>();
+		users = new ConcurrentHashMap<>();
+		credentials = new ConcurrentHashMap<>();
+		publicKeys = new ConcurrentHashMap<>();
 		File txtFolder = new File("txtFiles");
 		userInfo = new File("txtFiles//userCatalog.txt");
 		try {
@@ -53,8 +54,9 @@ public class UserCatalog {
 			if (!userInfo.exists()) {
 				userInfo.createNewFile();
 				Utils.updateHash(userInfo);
-			} else
-				getUsersByTextFile();
+			}
+			getUsersByTextFile();
+			loadCredentials();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -73,7 +75,9 @@ public class UserCatalog {
 	}
 
 	/**
-	 * Efetua o login do utilizador ou cria um novo utilizador.
+	 * Efetua o login do utilizador ou cria um novo utilizador. A troca de
+	 * mensagens com o cliente nao bloqueia o catalogo, pelo que varios logins
+	 * podem decorrer ao mesmo tempo.
 	 * 
 	 * @param in       ObjectInputStream para ler dados do servidor.
 	 * @param out      ObjectOutputStream para enviar dados para o servidor.
@@ -82,33 +86,12 @@ public class UserCatalog {
 	 *         contrario.
 	 * @throws Exception Se ocorrer um erro
 	 */
-	public synchronized String login(ObjectInputStream in, ObjectOutputStream out) throws Exception {
-		File users = new File("txtFiles//userCreds.txt");
-		if (!users.exists()) {
-			users.createNewFile();
-			Utils.updateHash(users);
-		}
-		Scanner sc = new Scanner(users);
-
+	public String login(ObjectInputStream in, ObjectOutputStream out) throws Exception {
 		// le user e verifica se ja existe
 		String user = in.readUTF();
+		boolean newUser = getCertificateName(user) == null;
 
-		boolean newUser = true;
-		String certName = "";
-		String line;
-		while (sc.hasNextLine()) {
-			line = Utils.cipherSymmetricString(Cipher.DECRYPT_MODE, fileKey, sc.nextLine());
-			if (line.startsWith(user)) {
-				newUser = false;
-				certName = line.split(":")[1];
-				break;
-			}
-		}
-		sc.close();
-
-		SecureRandom rd = new SecureRandom();
-		byte[] nonce = new byte[8];
-		rd.nextBytes(nonce);
+		byte[] nonce = generateNonce();
 		out.writeObject(nonce);
 		out.flush();
 
@@ -116,14 +99,13 @@ public class UserCatalog {
 		out.writeBoolean(newUser);
 		out.flush();
 		if (newUser) { // se o user nao existir faz o seu registo
-			result = registerUser(in, out, keyStore, user, nonce);
+			byte[] recievedNonce = (byte[]) in.readObject();
+			byte[] encryptedNonce = (byte[]) in.readObject(); // receber assinatura e certificado
+			Certificate cert = (Certificate) in.readObject();
+			result = registerUser(user, nonce, recievedNonce, encryptedNonce, cert);
 		} else { // se user existir
 			byte[] encryptedNonce = (byte[]) in.readObject();
-			CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-			FileInputStream fis = new FileInputStream("stores//server//" + certName);
-			Certificate certificate = certificateFactory.generateCertificate(fis);
-			fis.close();
-			result = Utils.verifySignature(certificate.getPublicKey(), nonce, encryptedNonce);
+			result = verifyNonce(user, nonce, encryptedNonce);
 		}
 
 		if (!result)
@@ -133,83 +115,168 @@ public class UserCatalog {
 	}
 
 	/**
-	 * Regista um novo utilizador no catalogo
+	 * Obtem o nome do ficheiro com o certificado de um utilizador registado,
+	 * atraves do indice de credenciais em memoria
 	 * 
-	 * @param in       stream de input
-	 * @param out      stream de output
-	 * @param keyStore a keystore a usar
-	 * @param user     o nome do novo utilizador
-	 * @param nonce    o nonce de verificacao gerado
+	 * @param user o nome do utilizador
+	 * @return o nome do ficheiro do certificado, ou null se o utilizador nao
+	 *         estiver registado
+	 */
+	public String getCertificateName(String user) {
+		return credentials.get(user);
+	}
+
+	/**
+	 * Le as credenciais do ficheiro userCreds.txt, e do seu registo, para o
+	 * indice em memoria. O ficheiro e decifrado apenas aqui, no arranque do
+	 * servidor.
+	 * 
+	 * @throws Exception se ocorrer um erro ao ler as credenciais
+	 */
+	private void loadCredentials() throws Exception {
+		File creds = new File("txtFiles//userCreds.txt");
+		if (!creds.exists()) {
+			creds.createNewFile();
+			Utils.updateHash(creds);
+		}
+		for (String[] entry : Utils.readRecords(creds, new LegacyFormat() {
+			@Override
+			public String key(String line) {
+				return line.split(":")[0];
+			}
+
+			@Override
+			public byte[] toRecord(String line) {
+				String[] fields = line.split(":");
+				return credentialsRecord(fields[0], fields[1]);
+			}
+		}, bytes -> {
+			RecordReader record = new RecordReader(bytes);
+			return new String[] { record.getString(), record.getString() };
+		}))
+			credentials.put(entry[0], entry[1]);
+	}
+
+	/**
+	 * Gera um nonce para o desafio de autenticacao
+	 * 
+	 * @return o nonce gerado
+	 */
+	public byte[] generateNonce() {
+		return CryptoService.randomBytes(8);
+	}
+
+	/**
+	 * Verifica a assinatura do nonce por um utilizador registado
+	 * 
+	 * @param user           o nome do utilizador
+	 * @param nonce          o nonce enviado ao utilizador
+	 * @param encryptedNonce o nonce assinado pelo utilizador
+	 * @return true se a assinatura for valida, false caso contrario
+	 */
+	public boolean verifyNonce(String user, byte[] nonce, byte[] encryptedNonce) {
+		return Utils.verifySignature(getPublicKey(user), nonce, encryptedNonce);
+	}
+
+	/**
+	 * Regista um novo utilizador no catalogo. A verificacao do nonce e da
+	 * assinatura e feita sem bloquear o catalogo; apenas a escrita do novo
+	 * utilizador e feita em exclusao mutua. A assinatura e verificada com o
+	 * algoritmo da chave do certificado (RSA ou Ed25519), que passa a ser o
+	 * algoritmo das assinaturas do utilizador.
+	 * 
+	 * @param user           o nome do novo utilizador
+	 * @param nonce          o nonce de verificacao gerado
+	 * @param recievedNonce  o nonce devolvido pelo utilizador
+	 * @param encryptedNonce o nonce assinado pelo utilizador
+	 * @param cert           o certificado do utilizador
 	 * @return true se o registo foi efetuado com sucesso, false caso contrario
 	 * @throws Exception
 	 */
-	private boolean registerUser(ObjectInputStream in, ObjectOutputStream out, KeyStore keyStore, String user,
-			byte[] nonce) throws Exception {
-		boolean result = true;
-
-		byte[] recievedNonce = (byte[]) in.readObject();
-		result = Arrays.equals(recievedNonce, nonce);
-		if (!result)
+	public boolean registerUser(String user, byte[] nonce, byte[] recievedNonce, byte[] encryptedNonce,
+			Certificate cert) throws Exception {
+		if (!Arrays.equals(recievedNonce, nonce))
 			return false;
 
-		byte[] encryptedNonce = (byte[]) in.readObject(); // receber assinatura e certificado
-		Certificate cert = (Certificate) in.readObject();
-
 		// verificar assinatura
-		result = Utils.verifySignature(cert.getPublicKey(), recievedNonce, encryptedNonce);
+		if (!Utils.verifySignature(cert.getPublicKey(), recievedNonce, encryptedNonce))
+			return false;
 
 		// se bem sucedido guardar certificado e user
-		if (result) {
-			File certFile = new File("stores//server//keyRSApub_" + user + ".cer");
-			certFile.createNewFile();
-			FileWriter fw = new FileWriter(certFile);
-			Base64.Encoder encoder = Base64.getMimeEncoder(64, System.getProperty("line.separator").getBytes());
-			fw.write("-----BEGIN CERTIFICATE-----\n");
-			fw.write(encoder.encodeToString(cert.getEncoded()));
-			fw.write("-----END CERTIFICATE-----\n");
-			fw.close();
-
-			this.addUser(user);
-			File creds = new File("txtFiles//userCreds.txt");
-			fw = new FileWriter(creds, true);
-			fw.write(Utils.cipherSymmetricString(Cipher.ENCRYPT_MODE, fileKey, user + ":" + certFile.getName())
-					+ "\r\n");
-			fw.close();
-			Utils.updateHash(creds);
-		}
-		return result;
+		boolean registered = addCredentials(user, cert);
+		GroupCommit.awaitDurable();
+		return registered;
+	}
+
+	/**
+	 * Guarda o certificado e as credenciais de um novo utilizador e adiciona-o ao
+	 * catalogo
+	 * 
+	 * @param user o nome do novo utilizador
+	 * @param cert o certificado do utilizador, ja verificado
+	 * @return true se o utilizador foi registado, false se ja tiver sido
+	 *         registado por outra sessao
+	 * @throws Exception
+	 */
+	private synchronized boolean addCredentials(String user, Certificate cert) throws Exception {
+		if (credentials.containsKey(user))
+			return false;
+
+		File certFile = new File("stores//server//keyRSApub_" + user + ".cer");
+		certFile.createNewFile();
+		FileWriter fw = new FileWriter(certFile);
+		Base64.Encoder encoder = Base64.getMimeEncoder(64, System.getProperty("line.separator").getBytes());
+		fw.write("-----BEGIN CERTIFICATE-----\n");
+		fw.write(encoder.encodeToString(cert.getEncoded()));
+		fw.write("-----END CERTIFICATE-----\n");
+		fw.close();
+		GroupCommit.changed(certFile);
+
+		this.addUser(user);
+		Utils.putRecord(new File("txtFiles//userCreds.txt"), user, credentialsRecord(user, certFile.getName()));
+		publicKeys.put(user, new CachedKey(cert.getPublicKey(), certFile.lastModified(), certFile.length()));
+		credentials.put(user, certFile.getName());
+		return true;
 	}
 
 	/**
-	 * Le e armazena os utilizadores do ficheiro de texto userInfo.
+	 * Le e armazena os utilizadores do ficheiro de texto userInfo, incluindo as
+	 * alteracoes guardadas no seu registo.
 	 * 
 	 * @param userInfo O arquivo de texto com as informacoes dos utilizadores.
 	 */
 	private void getUsersByTextFile() {
 		try {
-			Scanner sc = new Scanner(userInfo);
-			while (sc.hasNextLine()) {
-				String[] line = Utils.cipherSymmetricString(Cipher.DECRYPT_MODE, fileKey, sc.nextLine())
-						.split("(?!\\{.*)\\s(?![^{]*?\\})");
-				users.add(new User(line[0], Double.parseDouble(line[1]), stringToHashMap(line[2])));
-			}
-			sc.close();
+			List<User> stored = Utils.readRecords(userInfo, new LegacyFormat() {
+				@Override
+				public String key(String line) {
+					return line.split(" ", 2)[0];
+				}
+
+				@Override
+				public byte[] toRecord(String line) throws Exception {
+					String[] fields = line.split("(?!\\{.*)\\s(?![^{]*?\\})");
+					return new User(fields[0], Double.parseDouble(fields[1]), stringToHashMap(fields[2])).toRecord();
+				}
+			}, User::fromRecord);
+			for (User u : stored)
+				users.put(u.getName(), u);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Retorna um objeto User com base no nome do utilizador.
+	 * Retorna um objeto User com base no nome do utilizador. Os utilizadores sao
+	 * indexados pelo nome, pelo que a pesquisa nao depende do numero de
+	 * utilizadores.
 	 * 
 	 * @param userName O nome do utilizador.
-	 * @return Um objeto User correspondente ao nome do utilizador.
+	 * @return Um objeto User correspondente ao nome do utilizador, ou null se nao
+	 *         existir.
 	 */
 	public User getUserByName(String userName) {
-		for (User u : this.users)
-			if (u.getName().equals(userName))
-				return u;
-		return null;
+		return userName == null ? null : this.users.get(userName);
 	}
 
 	/**
@@ -220,26 +287,34 @@ public class UserCatalog {
 	public synchronized void addUser(String userName) {
 		try {
 			User u = new User(userName, 200, new HashMap<>());
-			this.users.add(u);
-			File userInfo = new File("txtFiles//userCatalog.txt");
-			FileWriter fw = new FileWriter(userInfo, true);
-			fw.write(Utils.cipherSymmetricString(Cipher.ENCRYPT_MODE, fileKey, u.toString()) + "\r\n");
-			fw.close();
-			Utils.updateHash(userInfo);
+			this.users.put(userName, u);
+			Utils.putRecord(userInfo, userName, u.toRecord());
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Obtem a chave publica de um user
+	 * Obtem a chave publica de um user. As chaves ficam em cache e so voltam a
+	 * ser lidas do certificado se o ficheiro deste mudar.
 	 * 
 	 * @param userId o nome do user
 	 * @return a chave publica
 	 */
 	public PublicKey getPublicKey(String userId) {
 		try {
-			return getUserByName(userId).getCertificate().getPublicKey();
+			User user = getUserByName(userId);
+			File certFile = user.getCertificateFile();
+			// o estado do ficheiro e lido antes do certificado, para que uma
+			// alteracao durante a leitura seja detetada no pedido seguinte
+			long lastModified = certFile.lastModified();
+			long length = certFile.length();
+			CachedKey cached = publicKeys.get(userId);
+			if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+				cached = new CachedKey(user.getCertificate().getPublicKey(), lastModified, length);
+				publicKeys.put(userId, cached);
+			}
+			return cached.key;
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -247,7 +322,19 @@ public class UserCatalog {
 	}
 
 	/**
-	 * Converte uma string em um HashMap de strings e listas de strings.
+	 * Cria o registo binario com as credenciais de um utilizador
+	 * 
+	 * @param user     o nome do utilizador
+	 * @param certName o nome do ficheiro do certificado
+	 * @return o registo
+	 */
+	private static byte[] credentialsRecord(String user, String certName) {
+		return new RecordWriter().putString(user).putString(certName).toByteArray();
+	}
+
+	/**
+	 * Converte uma string em um HashMap de strings e listas de strings. Usado
+	 * apenas na conversao do catalogo no formato de texto.
 	 * 
 	 * @param line A string a ser convertida.
 	 * @return Um HashMap com strings como chaves e listas de strings como valores.
@@ -267,4 +354,21 @@ public class UserCatalog {
 		return result;
 	}
 
+	/**
+	 * Uma chave publica em cache e o estado do ficheiro do certificado quando
+	 * foi lida
+	 */
+	private static class CachedKey {
+
+		private final PublicKey key;
+		private final long lastModified;
+		private final long length;
+
+		CachedKey(PublicKey key, long lastModified, long length) {
+			this.key = key;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
 }
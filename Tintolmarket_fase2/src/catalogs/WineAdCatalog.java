@@ -1,18 +1,14 @@
 package catalogs;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-
-import application.TintolmarketServer;
 import entities.User;
 import entities.Wine;
 import entities.WineAd;
+import utils.LegacyFormat;
+import utils.RecordReader;
 import utils.Utils;
 
 /**
@@ -24,13 +20,11 @@ public class WineAdCatalog {
 
 	private static WineAdCatalog instance;
 	private List<WineAd> wineAds;
-	private static SecretKey fileKey;
 
 	/**
 	 * Construtor privado da classe WineAdCatalog.
 	 */
 	private WineAdCatalog() {
-		fileKey = TintolmarketServer.getFileKey();
 		wineAds = new ArrayList<>();
 		File txtFolder = new File("txtFiles");
 		File wineAdsInfo = new File("txtFiles//wineAdsCatalog.txt");
@@ -40,8 +34,8 @@ public class WineAdCatalog {
 			if (!wineAdsInfo.exists()) {
 				wineAdsInfo.createNewFile();
 				Utils.updateHash(wineAdsInfo);
-			} else
-				getWineAdsByTextFile(wineAdsInfo);
+			}
+			getWineAdsByTextFile(wineAdsInfo);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -60,22 +54,35 @@ public class WineAdCatalog {
 	}
 
 	/**
-	 * Le e armazena os anuncios de vinho do arquivo de texto wineAdsInfo.
+	 * Le e armazena os anuncios de vinho do arquivo de texto wineAdsInfo,
+	 * incluindo as alteracoes guardadas no seu registo.
 	 * 
 	 * @param wineAdsInfo O arquivo de texto com as informacoes dos anuncios de
 	 *                    vinho.
 	 */
 	private void getWineAdsByTextFile(File wineAdsInfo) {
 		try {
-			Scanner sc = new Scanner(wineAdsInfo);
-			while (sc.hasNextLine()) {
-				String[] line = Utils.cipherSymmetricString(Cipher.DECRYPT_MODE, fileKey, sc.nextLine()).split(" ");
-				UserCatalog uc = UserCatalog.getInstance();
-				WineCatalog wc = WineCatalog.getInstance();
-				wineAds.add(new WineAd(uc.getUserByName(line[0]), wc.getWineByName(line[1]),
-						Double.parseDouble(line[2]), Integer.parseInt(line[3])));
-			}
-			sc.close();
+			UserCatalog uc = UserCatalog.getInstance();
+			WineCatalog wc = WineCatalog.getInstance();
+			wineAds.addAll(Utils.readRecords(wineAdsInfo, new LegacyFormat() {
+				@Override
+				public String key(String line) {
+					String[] fields = line.split(" ");
+					return WineAd.recordKey(fields[0], fields[1]);
+				}
+
+				@Override
+				public byte[] toRecord(String line) {
+					String[] fields = line.split(" ");
+					return new WineAd(uc.getUserByName(fields[0]), wc.getWineByName(fields[1]),
+							Double.parseDouble(fields[2]), Integer.parseInt(fields[3])).toRecord();
+				}
+			}, bytes -> {
+				RecordReader record = new RecordReader(bytes);
+				User user = uc.getUserByName(record.getString());
+				Wine wine = wc.getWineByName(record.getString());
+				return new WineAd(user, wine, record.getDouble(), record.getInt());
+			}));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -120,16 +127,8 @@ public class WineAdCatalog {
 	 * @param wineAd O anuncio de vinho a ser adicionado.
 	 */
 	public synchronized void addWineAd(WineAd wineAd) {
-		try {
-			File wineAdInfo = new File("txtFiles//wineAdsCatalog.txt");
-			FileWriter fw = new FileWriter(wineAdInfo, true);
-			fw.write(Utils.cipherSymmetricString(Cipher.ENCRYPT_MODE, fileKey, wineAd.toString()) + "\r\n");
-			this.wineAds.add(wineAd);
-			fw.close();
-			Utils.updateHash(wineAdInfo);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		this.wineAds.add(wineAd);
+		Utils.putRecord(new File("txtFiles//wineAdsCatalog.txt"), wineAd.getRecordKey(), wineAd.toRecord());
 	}
 
 	/**
@@ -140,6 +139,6 @@ public class WineAdCatalog {
 	public void remove(WineAd wineAd) {
 		wineAds.remove(wineAd);
 		File wineAdInfo = new File("txtFiles//wineAdsCatalog.txt");
-		Utils.replaceLine(wineAdInfo, wineAd.toString(), null);
+		Utils.removeRecord(wineAdInfo, wineAd.getRecordKey());
 	}
 }
@@ -1,36 +1,35 @@
 package catalogs;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-
-import application.TintolmarketServer;
 import entities.Wine;
 import exceptions.RepeatedWineException;
+import utils.LegacyFormat;
 import utils.Utils;
 
 /**
  * A classe WineCatalog e responsavel por gerir o catalogo de vinhos. Esta
  * classe permite criar, obter e armazenar informacoes sobre vinhos.
+ *
+ * Os vinhos sao indexados pelo nome num ConcurrentHashMap, pelo que a pesquisa
+ * de um vinho nao depende do tamanho do catalogo e pode ser feita por varias
+ * sessoes enquanto outra cria um vinho.
  */
 public class WineCatalog {
 
-	private List<Wine> wines;
+	private Map<String, Wine> wines;
 	private static WineCatalog instance;
-	private static SecretKey fileKey;
 
 	/**
 	 * Construtor privado da classe WineCatalog.
 	 */
 	private WineCatalog() {
-		fileKey = TintolmarketServer.getFileKey();
-		this.wines = new ArrayList<>();
+		this.wines = new ConcurrentHashMap<>();
 		File txtFolder = new File("txtFiles");
 		File wineInfo = new File("txtFiles//wineCatalog.txt");
 		try {
@@ -39,8 +38,8 @@ public class WineCatalog {
 			if (!wineInfo.exists()) {
 				wineInfo.createNewFile();
 				Utils.updateHash(wineInfo);
-			} else
-				getWinesByTextFile(wineInfo);
+			}
+			getWinesByTextFile(wineInfo);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -59,19 +58,27 @@ public class WineCatalog {
 	}
 
 	/**
-	 * Le e armazena os vinhos do arquivo de texto wineInfo.
+	 * Le e armazena os vinhos do arquivo de texto wineInfo, incluindo as
+	 * alteracoes guardadas no seu registo.
 	 * 
 	 * @param wineInfo O arquivo de texto com as informacoes dos vinhos.
 	 */
 	private void getWinesByTextFile(File wineInfo) {
 		try {
-			Scanner sc = new Scanner(wineInfo);
-			while (sc.hasNextLine()) {
-				String[] line = Utils.cipherSymmetricString(Cipher.DECRYPT_MODE, fileKey, sc.nextLine())
-						.split("(?!\\{.*)\\s(?![^{]*?\\})");
-				this.wines.add(new Wine(line[0], new File(line[1]), stringToHashMap(line[2])));
-			}
-			sc.close();
+			List<Wine> stored = Utils.readRecords(wineInfo, new LegacyFormat() {
+				@Override
+				public String key(String line) {
+					return line.split(" ", 2)[0];
+				}
+
+				@Override
+				public byte[] toRecord(String line) {
+					String[] fields = line.split("(?!\\{.*)\\s(?![^{]*?\\})");
+					return new Wine(fields[0], new File(fields[1]), stringToHashMap(fields[2])).toRecord();
+				}
+			}, Wine::fromRecord);
+			for (Wine w : stored)
+				this.wines.put(w.getName(), w);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -79,12 +86,12 @@ public class WineCatalog {
 	}
 
 	/**
-	 * Retorna a lista de vinhos.
+	 * Retorna a lista de vinhos, por nenhuma ordem em particular.
 	 * 
-	 * @return a lista de vinhos.
+	 * @return uma copia da lista de vinhos.
 	 */
 	public List<Wine> getWines() {
-		return this.wines;
+		return new ArrayList<>(this.wines.values());
 	}
 
 	/**
@@ -94,10 +101,7 @@ public class WineCatalog {
 	 * @return O vinho encontrado ou null se nao encontrado.
 	 */
 	public Wine getWineByName(String wineName) {
-		for (Wine w : this.wines)
-			if (wineName.equals(w.getName()))
-				return w;
-		return null;
+		return this.wines.get(wineName);
 	}
 
 	/**
@@ -110,21 +114,14 @@ public class WineCatalog {
 	public synchronized void createWine(String wineName, File image) throws RepeatedWineException {
 		if (getWineByName(wineName) != null)
 			throw new RepeatedWineException("Ja existe um vinho com o mesmo nome.");
-		try {
-			File wineInfo = new File("txtFiles//wineCatalog.txt");
-			FileWriter fw = new FileWriter(wineInfo, true);
-			Wine newWine = new Wine(wineName, image, new HashMap<>());
-			this.wines.add(newWine);
-			fw.write(Utils.cipherSymmetricString(Cipher.ENCRYPT_MODE, fileKey, newWine.toString()) + "\r\n");
-			fw.close();
-			Utils.updateHash(wineInfo);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		Wine newWine = new Wine(wineName, image, new HashMap<>());
+		this.wines.put(wineName, newWine);
+		Utils.putRecord(new File("txtFiles//wineCatalog.txt"), wineName, newWine.toRecord());
 	}
 
 	/**
-	 * Converte uma string em um HashMap.
+	 * Converte uma string em um HashMap. Usado apenas na conversao do catalogo
+	 * no formato de texto.
 	 * 
 	 * @param line A string a ser convertida.
 	 * @return O HashMap convertido.
@@ -8,9 +8,12 @@ import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import catalogs.WineAdCatalog;
+import utils.RecordReader;
+import utils.RecordWriter;
 import utils.Utils;
 
 /**
@@ -19,6 +22,12 @@ import utils.Utils;
  * 
  * Os utilizadores podem criar anúncios de vinhos, ajustar o saldo, adicionar
  * mensagens a caixa de mensagens e apagar todas as mensagens.
+ * 
+ * O saldo e a caixa de mensagens sao alterados por sessoes diferentes (por
+ * exemplo, o vendedor numa compra ou o destinatario de uma mensagem), pelo que
+ * sao lidos e alterados com o monitor do utilizador. O registo do catalogo e
+ * criado e gravado com o monitor obtido, para que as gravacoes do mesmo
+ * utilizador fiquem pela ordem das alteracoes.
  */
 
 public class User {
@@ -65,7 +74,7 @@ public class User {
 	 * 
 	 * @return O saldo do utilizador.
 	 */
-	public double getBalance() {
+	public synchronized double getBalance() {
 		return this.balance;
 	}
 
@@ -77,9 +86,18 @@ public class User {
 	 */
 	public Certificate getCertificate() throws Exception {
 		CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-		FileInputStream fis = new FileInputStream("stores//server//keyRSApub_" + name + ".cer");
-		return certificateFactory.generateCertificate(fis);
+		try (FileInputStream fis = new FileInputStream(getCertificateFile())) {
+			return certificateFactory.generateCertificate(fis);
+		}
+	}
 
+	/**
+	 * Obtem o ficheiro onde o server guarda o certificado do utilizador
+	 * 
+	 * @return o ficheiro do certificado
+	 */
+	public File getCertificateFile() {
+		return new File("stores//server//keyRSApub_" + name + ".cer");
 	}
 
 	/**
@@ -87,20 +105,21 @@ public class User {
 	 * 
 	 * @param value O valor a ser ajustado.
 	 */
-	public void adjustBalance(double value) {
-		String oldLine = this.toString();
+	public synchronized void adjustBalance(double value) {
 		this.balance += value;
-		String newLine = this.toString();
-		Utils.replaceLine(new File("txtFiles//userCatalog.txt"), oldLine, newLine);
+		save();
 	}
 
 	/**
-	 * Obtem a caixa de mensagens do utilizador.
+	 * Obtem uma copia da caixa de mensagens do utilizador.
 	 * 
 	 * @return A caixa de mensagens do utilizador.
 	 */
-	public HashMap<String, List<String>> getInbox() {
-		return inbox;
+	public synchronized HashMap<String, List<String>> getInbox() {
+		HashMap<String, List<String>> copy = new HashMap<>();
+		for (Map.Entry<String, List<String>> sender : inbox.entrySet())
+			copy.put(sender.getKey(), new ArrayList<>(sender.getValue()));
+		return copy;
 	}
 
 	/**
@@ -128,7 +147,7 @@ public class User {
 	 * 
 	 * @return A representacao em string da caixa de mensagens.
 	 */
-	public String inboxToString() {
+	public synchronized String inboxToString() {
 		StringBuilder sb = new StringBuilder();
 		for (String key : inbox.keySet()) {
 			sb.append(key + ": " + inbox.get(key) + "\r\n");
@@ -139,11 +158,23 @@ public class User {
 	/**
 	 * Apaga todas as mensagens da caixa de mensagens do utilizador.
 	 */
-	public void deleteMessages() {
-		String oldLine = this.toString();
+	public synchronized void deleteMessages() {
 		this.inbox.clear();
-		String newLine = this.toString();
-		Utils.replaceLine(new File("txtFiles//userCatalog.txt"), oldLine, newLine);
+		save();
+	}
+
+	/**
+	 * Le e apaga as mensagens do utilizador de uma so vez, para que nenhuma
+	 * mensagem recebida entre a leitura e a remocao se perca.
+	 * 
+	 * @return A representacao em string da caixa de mensagens, vazia se nao
+	 *         houver mensagens.
+	 */
+	public synchronized String readMessages() {
+		String messages = inboxToString();
+		if (!inbox.isEmpty())
+			deleteMessages();
+		return messages;
 	}
 
 	/**
@@ -153,13 +184,57 @@ public class User {
 	 * @param sender  O utilizador que envia a mensagem.
 	 * @param message A mensagem a ser enviada.
 	 */
-	public void addMessage(User sender, String message) {
-		String oldLine = this.toString();
+	public synchronized void addMessage(User sender, String message) {
 		List<String> senderMessages = this.inbox.getOrDefault(sender.getName(), new ArrayList<>());
 		senderMessages.add(message);
 		this.inbox.put(sender.getName(), senderMessages);
-		String newLine = this.toString();
-		Utils.replaceLine(new File("txtFiles//userCatalog.txt"), oldLine, newLine);
+		save();
+	}
+
+	/**
+	 * Guarda o estado do utilizador no catalogo de utilizadores. Deve ser chamado
+	 * com o monitor do utilizador obtido.
+	 */
+	private void save() {
+		Utils.putRecord(new File("txtFiles//userCatalog.txt"), name, toRecord());
+	}
+
+	/**
+	 * Converte o utilizador num registo binario do catalogo: o nome, o saldo e,
+	 * para cada remetente, o seu nome seguido das suas mensagens.
+	 * 
+	 * @return O registo do utilizador.
+	 */
+	public synchronized byte[] toRecord() {
+		RecordWriter record = new RecordWriter().putString(name).putDouble(balance).putInt(inbox.size());
+		for (Map.Entry<String, List<String>> sender : inbox.entrySet()) {
+			record.putString(sender.getKey()).putInt(sender.getValue().size());
+			for (String message : sender.getValue())
+				record.putString(message);
+		}
+		return record.toByteArray();
+	}
+
+	/**
+	 * Cria um utilizador a partir de um registo binario do catalogo.
+	 * 
+	 * @param bytes O registo, criado com toRecord.
+	 * @return O utilizador.
+	 * @throws IOException Se o registo for invalido.
+	 */
+	public static User fromRecord(byte[] bytes) throws IOException {
+		RecordReader record = new RecordReader(bytes);
+		String name = record.getString();
+		double balance = record.getDouble();
+		HashMap<String, List<String>> inbox = new HashMap<>();
+		for (int senders = record.getInt(); senders > 0; senders--) {
+			String sender = record.getString();
+			List<String> messages = new ArrayList<>();
+			for (int count = record.getInt(); count > 0; count--)
+				messages.add(record.getString());
+			inbox.put(sender, messages);
+		}
+		return new User(name, balance, inbox);
 	}
 
 	@Override
@@ -175,7 +250,7 @@ public class User {
 	}
 
 	@Override
-	public String toString() {
+	public synchronized String toString() {
 		return this.name + " " + this.balance + " " + this.inbox;
 	}
 
@@ -1,11 +1,15 @@
 package entities;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import catalogs.WineAdCatalog;
+import utils.RecordReader;
+import utils.RecordWriter;
 import utils.Utils;
 
 /**
@@ -14,6 +18,9 @@ import utils.Utils;
  * 
  * Os vinhos podem ter anuncios associados e classificacoes adicionadas por
  * utilizadores.
+ * 
+ * As classificacoes sao lidas e alteradas com o monitor do vinho, que tambem
+ * protege a criacao e gravacao do seu registo no catalogo.
  */
 public class Wine {
 
@@ -73,12 +80,12 @@ public class Wine {
 	}
 
 	/**
-	 * Obtem as classificacoes do vinho.
+	 * Obtem uma copia das classificacoes do vinho.
 	 * 
 	 * @return As classificacoes do vinho.
 	 */
-	public HashMap<String, Integer> getClassifications() {
-		return classifications;
+	public synchronized HashMap<String, Integer> getClassifications() {
+		return new HashMap<>(classifications);
 	}
 
 	/**
@@ -87,12 +94,41 @@ public class Wine {
 	 * @param user  O autor da classificacao.
 	 * @param stars O valor numerico da classificacao.
 	 */
-	public void addClassification(User user, Integer stars) {
-		String oldLine = this.toString();
+	public synchronized void addClassification(User user, Integer stars) {
 		this.classifications.put(user.getName(), stars);
-		String newLine = this.toString();
 		File wineInfo = new File("txtFiles//wineCatalog.txt");
-		Utils.replaceLine(wineInfo, oldLine, newLine);
+		Utils.putRecord(wineInfo, name, toRecord());
+	}
+
+	/**
+	 * Converte o vinho num registo binario do catalogo: o nome, o nome da imagem
+	 * e as classificacoes, com o nome do autor de cada uma.
+	 * 
+	 * @return O registo do vinho.
+	 */
+	public synchronized byte[] toRecord() {
+		RecordWriter record = new RecordWriter().putString(name).putString(image.getName())
+				.putInt(classifications.size());
+		for (Map.Entry<String, Integer> classification : classifications.entrySet())
+			record.putString(classification.getKey()).putInt(classification.getValue());
+		return record.toByteArray();
+	}
+
+	/**
+	 * Cria um vinho a partir de um registo binario do catalogo.
+	 * 
+	 * @param bytes O registo, criado com toRecord.
+	 * @return O vinho.
+	 * @throws IOException Se o registo for invalido.
+	 */
+	public static Wine fromRecord(byte[] bytes) throws IOException {
+		RecordReader record = new RecordReader(bytes);
+		String name = record.getString();
+		File image = new File(record.getString());
+		HashMap<String, Integer> classifications = new HashMap<>();
+		for (int count = record.getInt(); count > 0; count--)
+			classifications.put(record.getString(), record.getInt());
+		return new Wine(name, image, classifications);
 	}
 
 	/**
@@ -105,11 +141,13 @@ public class Wine {
 		StringBuilder sb = new StringBuilder();
 		sb.append("Nome do Vinho: " + name + " - " + this.image.getName() + "\n");
 		double avg = 0.0;
-		for (int i : classifications.values()) {
-			avg += i;
-		}
-		if (avg != 0) {
-			avg /= classifications.size();
+		synchronized (this) {
+			for (int i : classifications.values()) {
+				avg += i;
+			}
+			if (avg != 0) {
+				avg /= classifications.size();
+			}
 		}
 
 		sb.append("Media das classificacoes: " + avg + "\n");
@@ -125,7 +163,7 @@ public class Wine {
 	}
 
 	@Override
-	public String toString() {
+	public synchronized String toString() {
 		return this.name + " " + this.image.getName() + " " + this.classifications;
 	}
 
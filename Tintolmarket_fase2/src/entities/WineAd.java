@@ -3,12 +3,16 @@ package entities;
 import java.io.File;
 import java.util.Objects;
 
+import utils.RecordWriter;
 import utils.Utils;
 
 /**
  * A classe WineAd representa um anuncio de vinho no sistema. Cada anuncio
  * contem informacoes sobre o utilizador que o criou, o vinho anunciado, o preco
  * e a quantidade disponivel.
+ * 
+ * O preco e a quantidade sao lidos e alterados com o monitor do anuncio, que
+ * tambem protege a criacao e gravacao do seu registo no catalogo.
  */
 public class WineAd {
 
@@ -55,7 +59,7 @@ public class WineAd {
 	 * 
 	 * @return A quantidade disponivel.
 	 */
-	public int getQuantity() {
+	public synchronized int getQuantity() {
 		return quantity;
 	}
 
@@ -65,12 +69,43 @@ public class WineAd {
 	 * @param quantity A nova quantidade.
 	 * @param price    O novo preco.
 	 */
-	public void adjustQuantityAndPrice(int quantity, double price) {
-		String oldLine = this.toString();
+	public synchronized void adjustQuantityAndPrice(int quantity, double price) {
 		this.quantity += quantity;
 		this.price = price;
-		String newLine = this.toString();
-		Utils.replaceLine(new File("txtFiles//wineAdsCatalog.txt"), oldLine, newLine);
+		Utils.putRecord(new File("txtFiles//wineAdsCatalog.txt"), getRecordKey(), toRecord());
+	}
+
+	/**
+	 * Obtem a chave do anuncio no catalogo de anuncios. Cada utilizador tem no
+	 * maximo um anuncio por vinho.
+	 * 
+	 * @return A chave do anuncio.
+	 */
+	public String getRecordKey() {
+		return recordKey(user.getName(), wine.getName());
+	}
+
+	/**
+	 * Obtem a chave do anuncio de um utilizador para um vinho. O tamanho do nome
+	 * do utilizador separa os dois nomes sem ambiguidade.
+	 * 
+	 * @param user O nome do utilizador.
+	 * @param wine O nome do vinho.
+	 * @return A chave do anuncio.
+	 */
+	public static String recordKey(String user, String wine) {
+		return user.length() + ":" + user + wine;
+	}
+
+	/**
+	 * Converte o anuncio num registo binario do catalogo: o nome do utilizador, o
+	 * nome do vinho, o preco e a quantidade.
+	 * 
+	 * @return O registo do anuncio.
+	 */
+	public synchronized byte[] toRecord() {
+		return new RecordWriter().putString(user.getName()).putString(wine.getName()).putDouble(price)
+				.putInt(quantity).toByteArray();
 	}
 
 	/**
@@ -78,7 +113,7 @@ public class WineAd {
 	 * 
 	 * @return O preco do vinho.
 	 */
-	public double getPrice() {
+	public synchronized double getPrice() {
 		return price;
 	}
 
@@ -87,12 +122,12 @@ public class WineAd {
 	 * 
 	 * @param i A nova quantidade.
 	 */
-	public void setQuantity(int i) {
+	public synchronized void setQuantity(int i) {
 		this.quantity = i;
 	}
 
 	@Override
-	public String toString() {
+	public synchronized String toString() {
 		return user.getName() + " " + this.wine.getName() + " " + this.price + " " + this.quantity;
 	}
 
@@ -45,10 +45,9 @@ public class ShowInfoHandler {
 	 * @return Uma representacao em string das mensagens do utilizador.
 	 */
 	public static String read(User user) {
-		String inbox = user.inboxToString();
+		String inbox = user.readMessages();
 		if (inbox.equals(""))
 			return "Nao tem mensagens";
-		user.deleteMessages();
 		return inbox;
 	}
 
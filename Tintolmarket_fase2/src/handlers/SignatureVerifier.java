@@ -0,0 +1,160 @@
+package handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A classe SignatureVerifier verifica as assinaturas das transacoes recebidas
+ * numa pool propria, antes de as transacoes alterarem os catalogos. As
+ * assinaturas das operacoes de um pedido BATCH sao verificadas em paralelo, e o
+ * numero de verificacoes em curso fica limitado ao numero de threads da pool,
+ * qualquer que seja o numero de sessoes, pelo que as verificacoes nao competem
+ * pelo CPU com a cifra e a escrita dos catalogos.
+ *
+ * A fila da pool e limitada: quando esta cheia, a verificacao e feita pela
+ * thread que a pediu.
+ *
+ * A configuracao e feita atraves das seguintes propriedades do sistema:
+ * <ul>
+ * <li>tintolmarket.verifyWorkers - numero de threads da pool (por omissao o
+ * numero de processadores; 0 verifica as assinaturas na thread da sessao)</li>
+ * <li>tintolmarket.verifyQueue - numero de verificacoes em espera na pool (por
+ * omissao 1024)</li>
+ * </ul>
+ */
+public final class SignatureVerifier {
+
+	private static final int WORKERS = Integer.getInteger("tintolmarket.verifyWorkers",
+			Runtime.getRuntime().availableProcessors());
+	private static final int CAPACITY = Integer.getInteger("tintolmarket.verifyQueue", 1024);
+
+	private static final ThreadPoolExecutor pool = WORKERS > 0 ? newPool() : null;
+	private static final AtomicLong verified = new AtomicLong();
+	private static final AtomicLong waitTime = new AtomicLong();
+	private static final AtomicLong maxWait = new AtomicLong();
+	private static final AtomicLong verifyTime = new AtomicLong();
+
+	private SignatureVerifier() {
+	}
+
+	/**
+	 * Verifica uma assinatura na pool, esperando pelo resultado
+	 *
+	 * @param verification a verificacao da assinatura
+	 * @return true se a assinatura e valida, false caso contrario
+	 */
+	public static boolean verify(BooleanSupplier verification) {
+		return submit(verification).join();
+	}
+
+	/**
+	 * Verifica varias assinaturas em paralelo, esperando por todos os resultados
+	 *
+	 * @param verifications as verificacoes das assinaturas
+	 * @return o resultado de cada verificacao, pela ordem dada
+	 */
+	public static boolean[] verifyAll(List<BooleanSupplier> verifications) {
+		return verifyAllAsync(verifications).join();
+	}
+
+	/**
+	 * Verifica varias assinaturas em paralelo, sem esperar pelos resultados
+	 *
+	 * @param verifications as verificacoes das assinaturas
+	 * @return o resultado de cada verificacao, pela ordem dada, disponivel quando
+	 *         todas terminarem
+	 */
+	public static CompletableFuture<boolean[]> verifyAllAsync(List<BooleanSupplier> verifications) {
+		List<CompletableFuture<Boolean>> results = new ArrayList<>();
+		for (BooleanSupplier verification : verifications)
+			results.add(submit(verification));
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+			boolean[] valid = new boolean[results.size()];
+			for (int i = 0; i < valid.length; i++)
+				valid[i] = results.get(i).join();
+			return valid;
+		});
+	}
+
+	/**
+	 * Obtem uma representacao textual das metricas da verificacao de
+	 * assinaturas: a ocupacao da fila, o tempo medio e maximo, em microssegundos,
+	 * que uma verificacao espera por uma thread e o tempo medio de cada
+	 * verificacao
+	 *
+	 * @return as metricas atuais
+	 */
+	public static String metrics() {
+		long count = verified.get();
+		return String.format(
+				"assinaturas[us] fila=%d capacidade=%d threads=%d verificadas=%d espera=%d esperaMax=%d verificacao=%d",
+				pool == null ? 0 : pool.getQueue().size(), CAPACITY, WORKERS, count, average(waitTime, count),
+				TimeUnit.NANOSECONDS.toMicros(maxWait.get()), average(verifyTime, count));
+	}
+
+	/**
+	 * Submete uma verificacao a pool, ou executa-a de imediato se a pool estiver
+	 * desativada
+	 *
+	 * @param verification a verificacao da assinatura
+	 * @return o resultado da verificacao
+	 */
+	private static CompletableFuture<Boolean> submit(BooleanSupplier verification) {
+		long submitted = System.nanoTime();
+		if (pool == null)
+			return CompletableFuture.completedFuture(run(verification, submitted));
+		return CompletableFuture.supplyAsync(() -> run(verification, submitted), pool);
+	}
+
+	/**
+	 * Executa uma verificacao, registando o tempo de espera e de verificacao
+	 *
+	 * @param verification a verificacao da assinatura
+	 * @param submitted    o instante, em nanossegundos, em que foi submetida
+	 * @return true se a assinatura e valida, false caso contrario
+	 */
+	private static boolean run(BooleanSupplier verification, long submitted) {
+		long start = System.nanoTime();
+		boolean valid = verification.getAsBoolean();
+		long waited = start - submitted;
+		verifyTime.addAndGet(System.nanoTime() - start);
+		waitTime.addAndGet(waited);
+		maxWait.accumulateAndGet(waited, Math::max);
+		verified.incrementAndGet();
+		return valid;
+	}
+
+	/**
+	 * Calcula a media de um tempo acumulado
+	 *
+	 * @param total o tempo total, em nanossegundos
+	 * @param count o numero de verificacoes
+	 * @return a media em microssegundos, ou 0 se nao houver verificacoes
+	 */
+	private static long average(AtomicLong total, long count) {
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(total.get() / count);
+	}
+
+	/**
+	 * Cria a pool de verificacao de assinaturas
+	 *
+	 * @return a pool criada
+	 */
+	private static ThreadPoolExecutor newPool() {
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(CAPACITY), r -> {
+					Thread t = new Thread(r, "signature-verifier-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+}
@@ -1,6 +1,9 @@
 package handlers;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 
 import catalogs.BlockChain;
 import catalogs.UserCatalog;
@@ -15,6 +18,7 @@ import exceptions.NotEnoughBalanceException;
 import exceptions.NotEnoughStockException;
 import exceptions.UserNotFoundException;
 import exceptions.WineNotFoundException;
+import utils.Utils;
 
 /**
  * A classe TransactionHandler e responsavel por tratar das operacoes de compra
@@ -33,12 +37,146 @@ public class TransactionHandler {
 	 * @throws Exception
 	 */
 	public static void sell(User user, String wine, double price, int quantity, byte[] signature) throws Exception {
+		Order order = Order.sell(wine, price, quantity, signature);
+		boolean valid = SignatureVerifier.verify(() -> order.verify(user));
+		BlockChain.getInstance().addTransaction(sell(user, wine, price, quantity, signature, valid));
+	}
+
+	/**
+	 * Realiza a compra de um vinho de um vendedor.
+	 * 
+	 * @param buyer     O utilizador que deseja comprar o vinho.
+	 * @param wineName  O nome do vinho a ser comprado.
+	 * @param seller    O nome do utilizador vendedor.
+	 * @param quantity  A quantidade desejada para compra.
+	 * @param signature A assinatura do cliente
+	 * @throws NotEnoughStockException     Se nao houver stock suficiente.
+	 * @throws UserNotFoundException       Se o utilizador nao for encontrado.
+	 * @throws WineNotFoundException       Se o vinho nao for encontrado.
+	 * @throws NotEnoughBalanceException   Se nao tiver saldo suficiente.
+	 * @throws InvalidTransactionException Se a transacao for invalida
+	 */
+	public static void buy(User buyer, String wineName, String seller, int quantity, byte[] signature)
+			throws NotEnoughStockException, UserNotFoundException, WineNotFoundException, NotEnoughBalanceException,
+			InvalidTransactionException {
+		Order order = Order.buy(wineName, seller, quantity, signature);
+		boolean valid = SignatureVerifier.verify(() -> order.verify(buyer));
+		Transaction ts = buy(buyer, wineName, seller, quantity, signature, valid);
+		try {
+			BlockChain.getInstance().addTransaction(ts);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Executa um conjunto de compras e vendas de um utilizador. As assinaturas de
+	 * todas as operacoes sao verificadas em paralelo antes de qualquer uma ser
+	 * executada, e as restantes sao executadas pela ordem dada. As alteracoes aos catalogos e a
+	 * blockchain sao escritas de uma so vez, no fim.
+	 * 
+	 * @param user   O utilizador que efetua as operacoes.
+	 * @param orders As operacoes a executar.
+	 * @return um array com o erro de cada operacao, ou null nas posicoes das
+	 *         operacoes bem sucedidas
+	 * @throws Exception se ocorrer um erro ao escrever na blockchain
+	 */
+	public static Exception[] batch(User user, List<Order> orders) throws Exception {
+		return batch(user, orders, verify(user, orders).join());
+	}
+
+	/**
+	 * Executa um conjunto de compras e vendas de um utilizador cujas assinaturas
+	 * ja foram verificadas com verify
+	 * 
+	 * @param user   O utilizador que efetua as operacoes.
+	 * @param orders As operacoes a executar.
+	 * @param valid  O resultado da verificacao da assinatura de cada operacao.
+	 * @return um array com o erro de cada operacao, ou null nas posicoes das
+	 *         operacoes bem sucedidas
+	 * @throws Exception se ocorrer um erro ao escrever na blockchain
+	 */
+	public static Exception[] batch(User user, List<Order> orders, boolean[] valid) throws Exception {
+		Exception[] errors = new Exception[orders.size()];
+		List<Transaction> transactions = new ArrayList<>();
+		Utils.beginBatch();
+		try {
+			for (int i = 0; i < orders.size(); i++) {
+				Order o = orders.get(i);
+				try {
+					if (!valid[i])
+						throw new InvalidTransactionException(
+								o.buy ? "Erro ao validar assinatura" : "Erro ao validar transacao");
+					transactions.add(o.buy ? buy(user, o.wine, o.seller, o.quantity, o.signature, true)
+							: sell(user, o.wine, o.price, o.quantity, o.signature, true));
+				} catch (Exception e) {
+					errors[i] = e;
+				}
+			}
+		} finally {
+			Utils.commitBatch();
+		}
+		BlockChain.getInstance().addTransactions(transactions);
+		return errors;
+	}
+
+	/**
+	 * Executa uma compra ou venda cuja assinatura ja foi verificada com verify
+	 * 
+	 * @param user  O utilizador que efetua a operacao.
+	 * @param order A operacao a executar.
+	 * @param valid true se a assinatura da operacao e valida
+	 * @throws Exception
+	 */
+	public static void execute(User user, Order order, boolean valid) throws Exception {
+		if (!order.buy) {
+			BlockChain.getInstance().addTransaction(
+					sell(user, order.wine, order.price, order.quantity, order.signature, valid));
+			return;
+		}
+		Transaction ts = buy(user, order.wine, order.seller, order.quantity, order.signature, valid);
+		try {
+			BlockChain.getInstance().addTransaction(ts);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Verifica em paralelo, na pool do SignatureVerifier, as assinaturas de um
+	 * conjunto de operacoes, sem esperar pelos resultados
+	 * 
+	 * @param user   O utilizador que efetua as operacoes.
+	 * @param orders As operacoes a verificar.
+	 * @return o resultado da verificacao de cada operacao, pela ordem dada
+	 */
+	public static CompletableFuture<boolean[]> verify(User user, List<Order> orders) {
+		List<BooleanSupplier> verifications = new ArrayList<>();
+		for (Order o : orders)
+			verifications.add(() -> o.verify(user));
+		return SignatureVerifier.verifyAllAsync(verifications);
+	}
+
+	/**
+	 * Cria um anuncio de vinho para venda, sem registar a transacao na blockchain
+	 * 
+	 * @param user      O utilizador que deseja vender o vinho.
+	 * @param wine      O nome do vinho a ser vendido.
+	 * @param price     O preco unitario do vinho.
+	 * @param quantity  A quantidade disponivel para venda.
+	 * @param signature A assinatura da transacao
+	 * @param valid     true se a assinatura foi verificada e e valida
+	 * @return a transacao a registar na blockchain
+	 * @throws Exception
+	 */
+	private static Transaction sell(User user, String wine, double price, int quantity, byte[] signature,
+			boolean valid) throws Exception {
 		Wine w = WineCatalog.getInstance().getWineByName(wine);
 		if (w != null) {
 			Transaction ts = new Transaction(false, wine, quantity, price, user.getName(), signature);
-			if (ts.validateSellTransaction()) {
+			if (valid) {
 				user.createWineAd(w, price, quantity);
-				BlockChain.getInstance().addTransaction(ts);
+				return ts;
 			} else
 				throw new InvalidTransactionException("Erro ao validar transacao");
 		} else
@@ -46,22 +184,24 @@ public class TransactionHandler {
 	}
 
 	/**
-	 * Realiza a compra de um vinho de um vendedor.
+	 * Realiza a compra de um vinho, sem registar a transacao na blockchain
 	 * 
 	 * @param buyer     O utilizador que deseja comprar o vinho.
 	 * @param wineName  O nome do vinho a ser comprado.
 	 * @param seller    O nome do utilizador vendedor.
 	 * @param quantity  A quantidade desejada para compra.
 	 * @param signature A assinatura do cliente
+	 * @param valid     true se a assinatura foi verificada e e valida
+	 * @return a transacao a registar na blockchain
 	 * @throws NotEnoughStockException     Se nao houver stock suficiente.
 	 * @throws UserNotFoundException       Se o utilizador nao for encontrado.
 	 * @throws WineNotFoundException       Se o vinho nao for encontrado.
 	 * @throws NotEnoughBalanceException   Se nao tiver saldo suficiente.
 	 * @throws InvalidTransactionException Se a transacao for invalida
 	 */
-	public static void buy(User buyer, String wineName, String seller, int quantity, byte[] signature)
-			throws NotEnoughStockException, UserNotFoundException, WineNotFoundException, NotEnoughBalanceException,
-			InvalidTransactionException {
+	private static Transaction buy(User buyer, String wineName, String seller, int quantity, byte[] signature,
+			boolean valid) throws NotEnoughStockException, UserNotFoundException, WineNotFoundException,
+			NotEnoughBalanceException, InvalidTransactionException {
 		double balance = buyer.getBalance();
 
 		User sellerUser = UserCatalog.getInstance().getUserByName(seller);
@@ -93,23 +233,77 @@ public class TransactionHandler {
 		Transaction ts = new Transaction(true, wine.getName(), quantity, priceToPay / quantity, buyer.getName(),
 				signature);
 
-		try {
-			if (ts.validateBuyTransaction()) {
-				buyer.adjustBalance(-priceToPay);
-				sellerUser.adjustBalance(priceToPay);
-				wad.adjustQuantityAndPrice(-quantity, wad.getPrice());
-				if (wad.getQuantity() == 0) {
-					WineAdCatalog wineAdCatalog = WineAdCatalog.getInstance();
-					wineAdCatalog.remove(wad);
-				}
-				BlockChain.getInstance().addTransaction(ts);
-			} else
-				throw new InvalidTransactionException("Erro ao validar assinatura");
-		} catch (InvalidTransactionException e) {
-			throw e;
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (valid) {
+			buyer.adjustBalance(-priceToPay);
+			sellerUser.adjustBalance(priceToPay);
+			wad.adjustQuantityAndPrice(-quantity, wad.getPrice());
+			if (wad.getQuantity() == 0) {
+				WineAdCatalog wineAdCatalog = WineAdCatalog.getInstance();
+				wineAdCatalog.remove(wad);
+			}
+			return ts;
+		} else
+			throw new InvalidTransactionException("Erro ao validar assinatura");
+	}
+
+	/**
+	 * A classe Order representa uma operacao de compra ou venda pedida num
+	 * conjunto de operacoes.
+	 */
+	public static class Order {
+
+		private final boolean buy;
+		private final String wine;
+		private final String seller;
+		private final double price;
+		private final int quantity;
+		private final byte[] signature;
+
+		private Order(boolean buy, String wine, String seller, double price, int quantity, byte[] signature) {
+			this.buy = buy;
+			this.wine = wine;
+			this.seller = seller;
+			this.price = price;
+			this.quantity = quantity;
+			this.signature = signature;
 		}
 
+		/**
+		 * Cria uma operacao de venda
+		 * 
+		 * @param wine      O nome do vinho a ser vendido.
+		 * @param price     O preco unitario do vinho.
+		 * @param quantity  A quantidade disponivel para venda.
+		 * @param signature A assinatura da transacao
+		 * @return a operacao criada
+		 */
+		public static Order sell(String wine, double price, int quantity, byte[] signature) {
+			return new Order(false, wine, null, price, quantity, signature);
+		}
+
+		/**
+		 * Cria uma operacao de compra
+		 * 
+		 * @param wine      O nome do vinho a ser comprado.
+		 * @param seller    O nome do utilizador vendedor.
+		 * @param quantity  A quantidade desejada para compra.
+		 * @param signature A assinatura do cliente
+		 * @return a operacao criada
+		 */
+		public static Order buy(String wine, String seller, int quantity, byte[] signature) {
+			return new Order(true, wine, seller, 0, quantity, signature);
+		}
+
+		/**
+		 * Verifica a assinatura da operacao. O preco de uma compra nao faz parte da
+		 * assinatura, pelo que pode ser verificada antes de se conhecer o anuncio.
+		 * 
+		 * @param user o utilizador que efetua a operacao
+		 * @return true se a assinatura e valida, false caso contrario
+		 */
+		private boolean verify(User user) {
+			Transaction ts = new Transaction(buy, wine, quantity, price, user.getName(), signature);
+			return buy ? ts.validateBuyTransaction() : ts.validateSellTransaction();
+		}
 	}
 }
@@ -0,0 +1,159 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.Utils;
+
+/**
+ * A classe BinaryClientTransport comunica com o servidor atraves do protocolo
+ * binario definido em FrameCodec. A negociacao do protocolo deve ter sido
+ * feita antes, com FrameCodec.negotiate.
+ *
+ * Depois do login, as respostas sao lidas por uma thread propria e entregues
+ * ao pedido com o mesmo identificador, pelo que podem estar varios pedidos
+ * pendentes na mesma ligacao e o servidor pode responder-lhes por qualquer
+ * ordem.
+ */
+public class BinaryClientTransport implements ClientTransport {
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	private final Map<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+	private volatile IOException failure;
+	private byte[] sessionTicket;
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param input  a stream de input da ligacao
+	 * @param output a stream de output da ligacao
+	 */
+	public BinaryClientTransport(InputStream input, OutputStream output) {
+		this.in = new DataInputStream(new BufferedInputStream(input));
+		this.out = new DataOutputStream(new BufferedOutputStream(output));
+	}
+
+	@Override
+	public boolean login(String name, PrivateKey key, Certificate cert, byte[] ticket) throws Exception {
+		Frame hello = new Frame(Opcode.LOGIN).add(name);
+		if (ticket != null)
+			hello.add(ticket);
+		write(hello);
+		Frame reply = FrameCodec.read(in);
+		if (reply.getOpcode() == Opcode.CHALLENGE) { // sem ticket ou ticket recusado
+			byte[] nonce = reply.getBytes(0);
+			Frame proof = new Frame(Opcode.PROOF).add(Utils.signByteArray(key, nonce));
+			if (reply.getBoolean(1)) // novo user
+				proof.add(nonce).add(cert.getEncoded());
+			write(proof);
+			reply = FrameCodec.read(in);
+		}
+		boolean result = !reply.isError();
+		sessionTicket = result && reply.size() > 0 ? reply.getBytes(0) : null;
+		if (result)
+			startReader();
+		return result;
+	}
+
+	@Override
+	public byte[] getSessionTicket() {
+		return sessionTicket;
+	}
+
+	@Override
+	public Frame send(Frame request) throws Exception {
+		try {
+			return submit(request).get();
+		} catch (ExecutionException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Frame> submit(Frame request) throws Exception {
+		if (request.getOpcode() == Opcode.EXIT) {
+			write(request);
+			return CompletableFuture.completedFuture(null);
+		}
+		if (failure != null)
+			throw failure;
+		CompletableFuture<Frame> response = new CompletableFuture<>();
+		int id = nextRequestId.incrementAndGet();
+		pending.put(id, response);
+		Frame numbered = new Frame(request.getOpcode(), id);
+		for (Object field : request.getFields())
+			numbered.add(field);
+		try {
+			write(numbered);
+		} catch (IOException e) {
+			pending.remove(id);
+			throw e;
+		}
+		// a ligacao pode ter falhado depois de o pedido ser registado
+		if (failure != null && pending.remove(id) != null)
+			response.completeExceptionally(failure);
+		return response;
+	}
+
+	@Override
+	public boolean supports(byte opcode) {
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+		out.close();
+	}
+
+	/**
+	 * Escreve uma frame na ligacao
+	 *
+	 * @param frame a frame a escrever
+	 * @throws IOException se ocorrer um erro na escrita
+	 */
+	private void write(Frame frame) throws IOException {
+		synchronized (out) {
+			FrameCodec.write(out, frame);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Inicia a thread que entrega as respostas do servidor aos pedidos pendentes
+	 */
+	private void startReader() {
+		Thread reader = new Thread(() -> {
+			try {
+				while (true) {
+					Frame response = FrameCodec.read(in);
+					CompletableFuture<Frame> request = pending.remove(response.getRequestId());
+					if (request != null)
+						request.complete(response);
+				}
+			} catch (IOException e) {
+				failure = e;
+				for (CompletableFuture<Frame> request : pending.values())
+					request.completeExceptionally(e);
+				pending.clear();
+			}
+		}, "response-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+}
@@ -0,0 +1,64 @@
+package protocol;
+
+import java.io.Closeable;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A interface ClientTransport representa a forma como o cliente comunica com
+ * o servidor. Os pedidos sao sempre descritos por frames, que cada
+ * implementacao traduz para o seu protocolo.
+ */
+public interface ClientTransport extends Closeable {
+
+	/**
+	 * Efetua o login no servidor
+	 *
+	 * @param name   o nome do utilizador
+	 * @param key    a chave privada usada para assinar o nonce
+	 * @param cert   o certificado com a chave publica do utilizador
+	 * @param ticket um ticket de sessao obtido num login anterior, ou null; se o
+	 *               servidor o aceitar o desafio com nonce nao e feito
+	 * @return true se a autenticacao foi bem sucedida, false caso contrario
+	 * @throws Exception se ocorrer um erro na comunicacao
+	 */
+	boolean login(String name, PrivateKey key, Certificate cert, byte[] ticket) throws Exception;
+
+	/**
+	 * Obtem o ticket de sessao emitido pelo servidor no ultimo login
+	 *
+	 * @return o ticket, ou null se o servidor nao o emitiu
+	 */
+	byte[] getSessionTicket();
+
+	/**
+	 * Envia um pedido e espera pela sua resposta
+	 *
+	 * @param request o pedido a enviar
+	 * @return a resposta do servidor, ou null se o pedido for EXIT
+	 * @throws Exception se ocorrer um erro na comunicacao
+	 */
+	Frame send(Frame request) throws Exception;
+
+	/**
+	 * Envia um pedido sem esperar pela sua resposta. Varios pedidos podem estar
+	 * pendentes ao mesmo tempo se o transporte o suportar; caso contrario o
+	 * pedido e respondido antes de o metodo terminar.
+	 *
+	 * @param request o pedido a enviar
+	 * @return a resposta futura do servidor
+	 * @throws Exception se ocorrer um erro na comunicacao
+	 */
+	CompletableFuture<Frame> submit(Frame request) throws Exception;
+
+	/**
+	 * Indica se o transporte suporta um codigo de operacao. Alguns pedidos, como
+	 * BATCH, so existem no protocolo binario.
+	 *
+	 * @param opcode o codigo de operacao
+	 * @return true se o transporte consegue enviar pedidos com esse codigo
+	 */
+	boolean supports(byte opcode);
+
+}
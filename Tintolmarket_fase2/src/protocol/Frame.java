@@ -0,0 +1,183 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A classe Frame representa uma mensagem do protocolo binario: um codigo de
+ * operacao, um identificador de pedido e uma lista de campos tipados (String,
+ * Integer, Long, Double, byte[] ou Boolean).
+ *
+ * Uma frame a enviar pode tambem conter ByteBuffers, que sao enviados como
+ * byte[] sem serem copiados para o heap (ver FrameCodec.write). Quem a recebe
+ * ve sempre um byte[].
+ */
+public class Frame {
+
+	private final byte opcode;
+	private final int requestId;
+	private final List<Object> fields;
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param opcode    o codigo de operacao
+	 * @param requestId o identificador do pedido
+	 */
+	public Frame(byte opcode, int requestId) {
+		this.opcode = opcode;
+		this.requestId = requestId;
+		this.fields = new ArrayList<>();
+	}
+
+	/**
+	 * Construtor de uma frame sem identificador de pedido
+	 *
+	 * @param opcode o codigo de operacao
+	 */
+	public Frame(byte opcode) {
+		this(opcode, 0);
+	}
+
+	/**
+	 * Cria a resposta de sucesso a um pedido
+	 *
+	 * @param request o pedido
+	 * @return a frame de resposta, com o mesmo identificador do pedido
+	 */
+	public static Frame ok(Frame request) {
+		return new Frame(Opcode.OK, request.getRequestId());
+	}
+
+	/**
+	 * Cria a resposta de erro a um pedido
+	 *
+	 * @param request o pedido
+	 * @param message a mensagem de erro
+	 * @return a frame de resposta, com o mesmo identificador do pedido
+	 */
+	public static Frame error(Frame request, String message) {
+		return new Frame(Opcode.ERROR, request.getRequestId()).add(String.valueOf(message));
+	}
+
+	/**
+	 * Adiciona um campo a frame
+	 *
+	 * @param value o valor do campo
+	 * @return a propria frame
+	 */
+	public Frame add(Object value) {
+		if (!(value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Double
+				|| value instanceof byte[] || value instanceof ByteBuffer || value instanceof Boolean))
+			throw new IllegalArgumentException("Tipo de campo nao suportado");
+		fields.add(value);
+		return this;
+	}
+
+	/**
+	 * Obtem o codigo de operacao da frame.
+	 *
+	 * @return o codigo de operacao
+	 */
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * Obtem o identificador do pedido.
+	 *
+	 * @return o identificador do pedido
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Obtem os campos da frame.
+	 *
+	 * @return a lista de campos
+	 */
+	public List<Object> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Indica se a frame e uma resposta de erro
+	 *
+	 * @return true se o opcode for ERROR
+	 */
+	public boolean isError() {
+		return opcode == Opcode.ERROR;
+	}
+
+	/**
+	 * Obtem um campo do tipo String.
+	 *
+	 * @param i a posicao do campo
+	 * @return o valor do campo
+	 */
+	public String getString(int i) {
+		return (String) fields.get(i);
+	}
+
+	/**
+	 * Obtem um campo do tipo int.
+	 *
+	 * @param i a posicao do campo
+	 * @return o valor do campo
+	 */
+	public int getInt(int i) {
+		return (Integer) fields.get(i);
+	}
+
+	/**
+	 * Obtem um campo do tipo long.
+	 *
+	 * @param i a posicao do campo
+	 * @return o valor do campo
+	 */
+	public long getLong(int i) {
+		return (Long) fields.get(i);
+	}
+
+	/**
+	 * Obtem um campo do tipo double.
+	 *
+	 * @param i a posicao do campo
+	 * @return o valor do campo
+	 */
+	public double getDouble(int i) {
+		return (Double) fields.get(i);
+	}
+
+	/**
+	 * Obtem um campo do tipo byte[].
+	 *
+	 * @param i a posicao do campo
+	 * @return o valor do campo
+	 */
+	public byte[] getBytes(int i) {
+		return (byte[]) fields.get(i);
+	}
+
+	/**
+	 * Obtem um campo do tipo boolean.
+	 *
+	 * @param i a posicao do campo
+	 * @return o valor do campo
+	 */
+	public boolean getBoolean(int i) {
+		return (Boolean) fields.get(i);
+	}
+
+	/**
+	 * Obtem o numero de campos da frame
+	 *
+	 * @return o numero de campos
+	 */
+	public int size() {
+		return fields.size();
+	}
+
+}
@@ -0,0 +1,332 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A classe FrameCodec codifica e descodifica frames do protocolo binario.
+ *
+ * Cada frame e enviada na forma [comprimento:int][opcode:byte][pedido:int]
+ * [numero de campos:short] seguida dos campos, cada um precedido de um byte
+ * com o seu tipo. Strings e arrays de bytes levam o seu comprimento como int.
+ * O comprimento inicial conta todos os bytes que se lhe seguem.
+ *
+ * A ligacao comeca com o cliente a enviar MAGIC; o servidor responde com o
+ * mesmo valor se suportar o protocolo binario. Um servidor antigo responde
+ * com o cabecalho de uma object stream, o que permite ao cliente voltar ao
+ * protocolo original.
+ */
+public final class FrameCodec {
+
+	/**
+	 * Identificacao do protocolo binario, versao 1
+	 */
+	public static final byte[] MAGIC = { 'T', 'M', 'K', 1 };
+
+	/**
+	 * Tamanho maximo aceite para uma frame. E o limite com que o cliente le as
+	 * respostas, que podem trazer uma imagem completa.
+	 */
+	public static final int MAX_FRAME_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * Tamanho maximo aceite para os pedidos de um cliente autenticado. As
+	 * imagens so sao enviadas em blocos de CHUNK_SIZE com UPLOAD, pelo que
+	 * nenhum pedido precisa de ser maior, e a memoria ocupada pelos pedidos em
+	 * curso de uma sessao fica limitada a alguns MB.
+	 */
+	public static final int MAX_REQUEST_FRAME_SIZE = 256 * 1024;
+
+	/**
+	 * Tamanho maximo aceite para as frames do login, lidas antes de o cliente
+	 * estar autenticado
+	 */
+	public static final int MAX_LOGIN_FRAME_SIZE = 16 * 1024;
+
+	/**
+	 * Tamanho maximo de cada bloco de uma imagem enviado com UPLOAD ou FETCH
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final int HEADER_SIZE = 1 + 4 + 2;
+	private static final int COPY_BUFFER_SIZE = 8192;
+	private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+	private static final byte STRING = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte BYTES = 5;
+	private static final byte BOOLEAN = 6;
+
+	private FrameCodec() {
+	}
+
+	/**
+	 * Escreve uma frame na stream fornecida. A stream nao e flushed.
+	 *
+	 * @param out   a stream de output
+	 * @param frame a frame a escrever
+	 * @throws IOException se ocorrer um erro na escrita
+	 */
+	public static void write(DataOutputStream out, Frame frame) throws IOException {
+		write(out, null, frame);
+	}
+
+	/**
+	 * Escreve uma frame na stream fornecida. Os campos do tipo ByteBuffer sao
+	 * escritos diretamente no canal, se existir, depois de a stream ser flushed;
+	 * caso contrario sao copiados para a stream aos poucos, atraves de um buffer
+	 * pequeno. Em nenhum dos casos o seu conteudo e copiado de uma so vez para um
+	 * array.
+	 *
+	 * @param out     a stream de output
+	 * @param channel o canal por baixo da stream, ou null
+	 * @param frame   a frame a escrever
+	 * @throws IOException se ocorrer um erro na escrita
+	 */
+	public static void write(DataOutputStream out, WritableByteChannel channel, Frame frame) throws IOException {
+		Object[] fields = frame.getFields().toArray();
+		int length = HEADER_SIZE;
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] instanceof String)
+				fields[i] = ((String) fields[i]).getBytes(StandardCharsets.UTF_8);
+			length += 1 + sizeOf(fields[i]);
+		}
+		if (length > MAX_FRAME_SIZE)
+			throw new IOException("Frame demasiado grande");
+
+		out.writeInt(length);
+		out.writeByte(frame.getOpcode());
+		out.writeInt(frame.getRequestId());
+		out.writeShort(fields.length);
+		for (int i = 0; i < fields.length; i++) {
+			Object original = frame.getFields().get(i);
+			Object value = fields[i];
+			if (original instanceof String) {
+				out.writeByte(STRING);
+				writeBytes(out, (byte[]) value);
+			} else if (value instanceof Integer) {
+				out.writeByte(INT);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if (value instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if (value instanceof byte[]) {
+				out.writeByte(BYTES);
+				writeBytes(out, (byte[]) value);
+			} else if (value instanceof ByteBuffer) {
+				out.writeByte(BYTES);
+				writeBuffer(out, channel, ((ByteBuffer) value).duplicate());
+			} else {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean((Boolean) value);
+			}
+		}
+	}
+
+	/**
+	 * Le uma frame da stream fornecida
+	 *
+	 * @param in a stream de input
+	 * @return a frame lida
+	 * @throws IOException se ocorrer um erro na leitura ou a frame for invalida
+	 */
+	public static Frame read(DataInputStream in) throws IOException {
+		return read(in, MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Le uma frame da stream fornecida, com um limite de tamanho proprio
+	 *
+	 * @param in      a stream de input
+	 * @param maxSize o tamanho maximo aceite para a frame
+	 * @return a frame lida
+	 * @throws IOException se ocorrer um erro na leitura ou a frame for invalida
+	 */
+	public static Frame read(DataInputStream in, int maxSize) throws IOException {
+		int length = in.readInt();
+		if (length < HEADER_SIZE || length > maxSize)
+			throw new IOException("Frame invalida");
+		byte opcode = in.readByte();
+		Frame frame = new Frame(opcode, in.readInt());
+		int count = in.readUnsignedShort();
+		int remaining = length - HEADER_SIZE;
+		for (int i = 0; i < count; i++) {
+			if (--remaining < 0)
+				throw new IOException("Frame invalida");
+			byte type = in.readByte();
+			switch (type) {
+			case STRING:
+				byte[] s = readBytes(in, remaining);
+				remaining -= 4 + s.length;
+				frame.add(new String(s, StandardCharsets.UTF_8));
+				break;
+			case INT:
+				remaining -= 4;
+				frame.add(in.readInt());
+				break;
+			case LONG:
+				remaining -= 8;
+				frame.add(in.readLong());
+				break;
+			case DOUBLE:
+				remaining -= 8;
+				frame.add(in.readDouble());
+				break;
+			case BYTES:
+				byte[] b = readBytes(in, remaining);
+				remaining -= 4 + b.length;
+				frame.add(b);
+				break;
+			case BOOLEAN:
+				remaining -= 1;
+				frame.add(in.readBoolean());
+				break;
+			default:
+				throw new IOException("Tipo de campo invalido");
+			}
+			if (remaining < 0)
+				throw new IOException("Frame invalida");
+		}
+		if (remaining != 0)
+			throw new IOException("Frame invalida");
+		return frame;
+	}
+
+	/**
+	 * Inicia o protocolo binario do lado do cliente
+	 *
+	 * @param in  a stream de input
+	 * @param out a stream de output
+	 * @return true se o servidor aceitou o protocolo binario
+	 * @throws IOException se ocorrer um erro na comunicacao
+	 */
+	public static boolean negotiate(InputStream in, OutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.flush();
+		byte[] reply = new byte[MAGIC.length];
+		try {
+			new DataInputStream(in).readFully(reply);
+		} catch (EOFException e) {
+			return false;
+		}
+		return Arrays.equals(reply, MAGIC);
+	}
+
+	/**
+	 * Verifica, do lado do servidor, se o cliente pediu o protocolo binario e,
+	 * em caso afirmativo, confirma-o. Caso contrario a stream e reposicionada no
+	 * inicio para ser lida pelo protocolo original.
+	 *
+	 * @param in  a stream de input, que deve suportar mark/reset
+	 * @param out a stream de output
+	 * @return true se o cliente usa o protocolo binario
+	 * @throws IOException se ocorrer um erro na comunicacao
+	 */
+	public static boolean accept(InputStream in, OutputStream out) throws IOException {
+		in.mark(MAGIC.length);
+		byte[] header = new byte[MAGIC.length];
+		new DataInputStream(in).readFully(header);
+		if (!Arrays.equals(header, MAGIC)) {
+			in.reset();
+			return false;
+		}
+		out.write(MAGIC);
+		out.flush();
+		return true;
+	}
+
+	/**
+	 * Calcula o numero de bytes ocupados por um campo, sem o byte de tipo
+	 *
+	 * @param value o valor do campo, com as strings ja codificadas
+	 * @return o tamanho do campo
+	 */
+	private static int sizeOf(Object value) {
+		if (value instanceof byte[])
+			return 4 + ((byte[]) value).length;
+		if (value instanceof ByteBuffer)
+			return 4 + ((ByteBuffer) value).remaining();
+		if (value instanceof Integer)
+			return 4;
+		if (value instanceof Boolean)
+			return 1;
+		return 8;
+	}
+
+	/**
+	 * Escreve um array de bytes precedido do seu comprimento
+	 *
+	 * @param out   a stream de output
+	 * @param bytes os bytes a escrever
+	 * @throws IOException se ocorrer um erro na escrita
+	 */
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Escreve o conteudo de um ByteBuffer precedido do seu comprimento
+	 *
+	 * @param out     a stream de output
+	 * @param channel o canal por baixo da stream, ou null
+	 * @param buffer  os bytes a escrever
+	 * @throws IOException se ocorrer um erro na escrita
+	 */
+	private static void writeBuffer(DataOutputStream out, WritableByteChannel channel, ByteBuffer buffer)
+			throws IOException {
+		out.writeInt(buffer.remaining());
+		if (channel != null) {
+			out.flush();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} else {
+			byte[] copy = new byte[Math.min(buffer.remaining(), COPY_BUFFER_SIZE)];
+			while (buffer.hasRemaining()) {
+				int n = Math.min(buffer.remaining(), copy.length);
+				buffer.get(copy, 0, n);
+				out.write(copy, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Le um array de bytes precedido do seu comprimento. O array cresce a medida
+	 * que os bytes chegam, em vez de ser alocado de uma vez com o comprimento
+	 * anunciado, pelo que a memoria usada e proporcional aos bytes realmente
+	 * recebidos.
+	 *
+	 * @param in        a stream de input
+	 * @param remaining os bytes que ainda faltam ler da frame
+	 * @return os bytes lidos
+	 * @throws IOException se o comprimento exceder o da frame
+	 */
+	private static byte[] readBytes(DataInputStream in, int remaining) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > remaining - 4)
+			throw new IOException("Frame invalida");
+		byte[] bytes = new byte[Math.min(length, READ_CHUNK_SIZE)];
+		int read = 0;
+		while (true) {
+			in.readFully(bytes, read, bytes.length - read);
+			read = bytes.length;
+			if (read == length)
+				return bytes;
+			bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.concurrent.CompletableFuture;
+
+import utils.Utils;
+
+/**
+ * A classe LegacyClientTransport comunica com o servidor atraves do protocolo
+ * original, baseado em object streams. E usada com servidores que nao
+ * suportam o protocolo binario.
+ */
+public class LegacyClientTransport implements ClientTransport {
+
+	private final ObjectOutputStream out;
+	private final ObjectInputStream in;
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param input  a stream de input da ligacao
+	 * @param output a stream de output da ligacao
+	 * @throws IOException se ocorrer um erro ao iniciar as streams
+	 */
+	public LegacyClientTransport(InputStream input, OutputStream output) throws IOException {
+		this.out = new ObjectOutputStream(output);
+		this.in = new ObjectInputStream(input);
+	}
+
+	@Override
+	public boolean login(String name, PrivateKey key, Certificate cert, byte[] ticket) throws Exception {
+		out.writeUTF(name);
+		out.flush();
+
+		byte[] nonce = (byte[]) in.readObject();
+
+		byte[] signedNonce = Utils.signByteArray(key, nonce);
+
+		if (in.readBoolean()) { // novo user
+			out.writeObject(nonce);
+			out.writeObject(signedNonce);
+			out.writeObject(cert);
+		} else { // user ja registado
+			out.writeObject(signedNonce);
+		}
+		out.flush();
+
+		return in.readBoolean();
+	}
+
+	@Override
+	public byte[] getSessionTicket() {
+		return null; // o protocolo original nao tem tickets
+	}
+
+	@Override
+	public Frame send(Frame request) throws Exception {
+		out.writeUTF(Opcode.toLegacyCommand(request.getOpcode()));
+		for (Object field : request.getFields()) {
+			if (field instanceof String)
+				out.writeUTF((String) field);
+			else if (field instanceof Integer)
+				out.writeInt((Integer) field);
+			else if (field instanceof Double)
+				out.writeDouble((Double) field);
+			else
+				out.writeObject(field);
+		}
+		out.flush();
+
+		if (request.getOpcode() == Opcode.EXIT)
+			return null;
+		if (request.getOpcode() == Opcode.VIEW) {
+			if (!in.readBoolean())
+				return Frame.error(request, in.readUTF());
+			return Frame.ok(request).add(in.readUTF()).add(in.readUTF()).add((byte[]) in.readObject());
+		}
+		return Frame.ok(request).add(in.readUTF());
+	}
+
+	@Override
+	public CompletableFuture<Frame> submit(Frame request) throws Exception {
+		return CompletableFuture.completedFuture(send(request));
+	}
+
+	@Override
+	public boolean supports(byte opcode) {
+		return opcode != Opcode.BATCH && opcode != Opcode.UPLOAD && opcode != Opcode.FETCH;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+		out.close();
+	}
+
+}
@@ -0,0 +1,50 @@
+package protocol;
+
+/**
+ * A classe Opcode define os codigos de operacao do protocolo binario. Os
+ * comandos usam as mesmas letras do protocolo original baseado em object
+ * streams, o que permite traduzir diretamente um pedido para esse protocolo.
+ * As excecoes sao BATCH, UPLOAD e FETCH, que so existem no protocolo binario.
+ */
+public final class Opcode {
+
+	// pedidos de login
+	public static final byte LOGIN = 'L';
+	public static final byte CHALLENGE = 'N';
+	public static final byte PROOF = 'P';
+
+	// comandos
+	public static final byte ADD = 'a';
+	public static final byte SELL = 's';
+	public static final byte VIEW = 'v';
+	public static final byte BUY = 'b';
+	public static final byte WALLET = 'w';
+	public static final byte CLASSIFY = 'c';
+	public static final byte TALK = 't';
+	public static final byte READ = 'r';
+	public static final byte LIST = 'l';
+	public static final byte EXIT = 'x';
+	public static final byte BATCH = 'B';
+	public static final byte UPLOAD = 'u';
+	public static final byte FETCH = 'f';
+
+	// respostas
+	public static final byte OK = 'K';
+	public static final byte ERROR = 'E';
+
+	private Opcode() {
+	}
+
+	/**
+	 * Obtem o comando equivalente no protocolo original
+	 *
+	 * @param opcode o codigo de operacao
+	 * @return a string enviada pelo protocolo original
+	 */
+	public static String toLegacyCommand(byte opcode) {
+		if (opcode == EXIT)
+			return "exit";
+		return String.valueOf((char) opcode);
+	}
+
+}
@@ -0,0 +1,387 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+/**
+ * A classe ChangeLog guarda as alteracoes a um ficheiro de catalogo num registo
+ * cifrado ao qual so se acrescentam linhas. Cada alteracao custa a escrita de
+ * uma linha no registo, em vez da reescrita de todo o catalogo.
+ *
+ * O catalogo passa a ser formado pelo ficheiro original (o snapshot) e pelo
+ * registo, com o mesmo nome e a extensao .log. Ao carregar o catalogo, as
+ * alteracoes do registo sao aplicadas as linhas do snapshot pela ordem em que
+ * foram feitas. Quando o registo atinge um dado numero de entradas, e tambem
+ * no arranque do servidor, as alteracoes sao incorporadas num novo snapshot e
+ * o registo recomeca.
+ *
+ * Cada linha, do snapshot ou do registo, e uma entrada binaria cifrada com
+ * RecordCipher: um byte com a versao do formato, a operacao (PUT ou REMOVE), a
+ * chave do registo e, num PUT, o registo escrito com RecordWriter. O snapshot
+ * contem apenas PUTs, um por registo. Linhas de texto, escritas por versoes
+ * anteriores, sao convertidas com um LegacyFormat quando o catalogo e
+ * carregado; linhas cifradas com outro formato de cifra sao convertidas da
+ * mesma forma.
+ *
+ * A primeira linha do registo identifica, pelo seu hash SHA-256, o snapshot a
+ * que as alteracoes se aplicam. Se o servidor parar depois de escrever um novo
+ * snapshot mas antes de recomecar o registo, as alteracoes antigas, ja
+ * incluidas no snapshot, sao ignoradas.
+ *
+ * Quando o servidor termina, os registos sao fechados (ver closeAll): as
+ * escritas em curso terminam, e o hash de cada ficheiro fica atualizado, mas
+ * nao sao aceites novas alteracoes.
+ *
+ * A configuracao e feita atraves da seguinte propriedade do sistema:
+ * <ul>
+ * <li>tintolmarket.logCompaction - numero de entradas do registo a partir do
+ * qual e escrito um novo snapshot (por omissao 1000)</li>
+ * </ul>
+ */
+final class ChangeLog {
+
+	private static final byte VERSION = 1;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private static final int COMPACTION = Integer.getInteger("tintolmarket.logCompaction", 1000);
+	private static final Map<File, ChangeLog> logs = new HashMap<>();
+
+	private final File snapshot;
+	private final File log;
+	private LegacyFormat legacy;
+	private int entries = -1;
+	private boolean closed;
+	private boolean outdated;
+	private boolean broken;
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param snapshot o ficheiro do catalogo
+	 */
+	private ChangeLog(File snapshot) {
+		this.snapshot = snapshot;
+		String name = snapshot.getName();
+		int dot = name.lastIndexOf('.');
+		this.log = new File(snapshot.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + ".log");
+	}
+
+	/**
+	 * Obtem o registo de alteracoes de um ficheiro de catalogo
+	 *
+	 * @param file o ficheiro do catalogo
+	 * @return o registo do ficheiro
+	 */
+	static synchronized ChangeLog of(File file) {
+		return logs.computeIfAbsent(file.getAbsoluteFile(), ChangeLog::new);
+	}
+
+	/**
+	 * Fecha todos os registos, esperando que terminem as escritas em curso. Quem
+	 * tentar escrever num registo fechado fica a espera ate a JVM terminar.
+	 */
+	static void closeAll() {
+		List<ChangeLog> all;
+		synchronized (ChangeLog.class) {
+			all = new ArrayList<>(logs.values());
+		}
+		for (ChangeLog log : all)
+			synchronized (log) {
+				log.closed = true;
+			}
+	}
+
+	/**
+	 * Cria a entrada que guarda um registo
+	 *
+	 * @param key    a chave do registo
+	 * @param record o registo
+	 * @return a entrada, em claro
+	 */
+	static byte[] put(String key, byte[] record) {
+		return new RecordWriter().putByte(VERSION).putByte(PUT).putString(key).putBytes(record).toByteArray();
+	}
+
+	/**
+	 * Cria a entrada que remove um registo
+	 *
+	 * @param key a chave do registo
+	 * @return a entrada, em claro
+	 */
+	static byte[] remove(String key) {
+		return new RecordWriter().putByte(VERSION).putByte(REMOVE).putString(key).toByteArray();
+	}
+
+	/**
+	 * Le o catalogo, aplicando ao snapshot as alteracoes do registo. Se o registo
+	 * tiver alteracoes, ou o catalogo estiver no formato de texto, e escrito um
+	 * novo snapshot.
+	 *
+	 * @param legacy a conversao das linhas de texto das versoes anteriores
+	 * @return os registos do catalogo, pela ordem em que foram criados
+	 * @throws Exception se ocorrer um erro na leitura ou na escrita
+	 */
+	synchronized List<byte[]> load(LegacyFormat legacy) throws Exception {
+		this.legacy = legacy;
+		byte[] bytes = snapshot.exists() ? Files.readAllBytes(snapshot.toPath()) : new byte[0];
+		Map<String, byte[]> records = new LinkedHashMap<>();
+		outdated = false;
+		boolean converted = false;
+		for (byte[] entry : decrypt(bytes))
+			converted |= apply(records, entry, false);
+		List<byte[]> changes = replay(digest(bytes));
+		if (changes != null)
+			for (byte[] entry : changes)
+				apply(records, entry, true);
+
+		if (converted || outdated || (changes != null && !changes.isEmpty()))
+			reset(snapshotOf(records), true);
+		else if (changes == null) // registo inexistente ou de um snapshot anterior
+			reset(bytes, false);
+		else
+			entries = 0;
+		return new ArrayList<>(records.values());
+	}
+
+	/**
+	 * Acrescenta entradas ao registo, com uma unica escrita, e escreve um novo
+	 * snapshot se o registo atingir o limite de entradas. Se a escrita ou a
+	 * atualizacao do hash falharem, o registo volta ao estado anterior, pelo que
+	 * a escrita pode ser repetida.
+	 *
+	 * @param changes as entradas, criadas com put ou remove
+	 * @throws Exception se ocorrer um erro na escrita
+	 */
+	synchronized void append(List<byte[]> changes) throws Exception {
+		while (closed) // o servidor esta a terminar
+			wait();
+		if (entries < 0)
+			load(legacy);
+		if (broken)
+			throw new IllegalStateException("O registo " + log.getName() + " ficou inconsistente");
+		StringBuilder sb = new StringBuilder();
+		for (byte[] change : changes)
+			sb.append(encrypt(change)).append("\r\n");
+		long length = log.length();
+		try {
+			try (FileWriter fw = new FileWriter(log, true)) {
+				fw.write(sb.toString());
+			}
+			GroupCommit.changed(log);
+			Utils.appendHash(log, sb.toString());
+		} catch (Exception e) {
+			rollback(length);
+			throw e;
+		}
+		entries += changes.size();
+		if (entries >= COMPACTION) {
+			try {
+				load(legacy);
+			} catch (Exception e) {
+				// as alteracoes ja estao no registo; a compactacao e tentada de novo
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Desfaz uma escrita no registo que falhou, truncando-o no tamanho anterior,
+	 * para que a escrita possa ser repetida sem duplicar entradas nem o hash
+	 * encadeado. Se nao for possivel, o registo deixa de aceitar escritas.
+	 *
+	 * @param length o tamanho do registo antes da escrita
+	 */
+	private void rollback(long length) {
+		try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+			file.setLength(length);
+		} catch (IOException e) {
+			broken = true;
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Le as entradas do registo
+	 *
+	 * @param digest o hash do snapshot atual
+	 * @return as entradas, ou null se o registo nao existir ou pertencer a outro
+	 *         snapshot
+	 * @throws Exception se ocorrer um erro na leitura
+	 */
+	private List<byte[]> replay(String digest) throws Exception {
+		if (!log.exists())
+			return null;
+		List<byte[]> lines = decrypt(Files.readAllBytes(log.toPath()));
+		if (lines.isEmpty() || !new String(lines.get(0), StandardCharsets.UTF_8).equals("#" + digest))
+			return null;
+		return lines.subList(1, lines.size());
+	}
+
+	/**
+	 * Cria o conteudo de um snapshot com os registos dados
+	 *
+	 * @param records os registos do catalogo, por chave
+	 * @return o conteudo do snapshot
+	 * @throws Exception se ocorrer um erro ao cifrar
+	 */
+	private byte[] snapshotOf(Map<String, byte[]> records) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, byte[]> record : records.entrySet())
+			sb.append(encrypt(put(record.getKey(), record.getValue()))).append("\r\n");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Recomeca o registo, associando-o ao snapshot com o conteudo dado, e
+	 * escreve esse snapshot se for novo. Os dois ficheiros e os seus hashes sao
+	 * substituidos com Utils.replaceFiles, o snapshot primeiro: se o servidor
+	 * parar entre as duas trocas, o registo antigo nao corresponde ao novo
+	 * snapshot e e ignorado, o que esta certo porque as suas alteracoes ja estao
+	 * no snapshot.
+	 *
+	 * @param bytes       o conteudo do snapshot
+	 * @param newSnapshot true se o snapshot tem de ser escrito
+	 * @throws Exception se ocorrer um erro na escrita
+	 */
+	private void reset(byte[] bytes, boolean newSnapshot) throws Exception {
+		String header = encrypt(("#" + digest(bytes)).getBytes(StandardCharsets.UTF_8));
+		Map<File, byte[]> contents = new LinkedHashMap<>();
+		if (newSnapshot)
+			contents.put(snapshot, bytes);
+		contents.put(log, (header + "\r\n").getBytes(StandardCharsets.UTF_8));
+		Utils.replaceFiles(contents);
+		entries = 0;
+	}
+
+	/**
+	 * Aplica uma entrada aos registos de um catalogo
+	 *
+	 * @param records os registos, por chave
+	 * @param entry   a entrada, em claro
+	 * @param logged  true se a entrada vem do registo de alteracoes, false se vem
+	 *                do snapshot
+	 * @return true se a entrada estava no formato de texto das versoes anteriores
+	 * @throws Exception se a entrada for invalida
+	 */
+	private boolean apply(Map<String, byte[]> records, byte[] entry, boolean logged) throws Exception {
+		if (entry.length == 0 || entry[0] != VERSION) {
+			applyLegacy(records, new String(entry, StandardCharsets.UTF_8), logged);
+			return true;
+		}
+		RecordReader reader = new RecordReader(entry);
+		reader.getByte(); // versao
+		byte op = reader.getByte();
+		String key = reader.getString();
+		if (op == PUT)
+			records.put(key, reader.getRemaining());
+		else if (op == REMOVE)
+			records.remove(key);
+		else
+			throw new IllegalStateException("Entrada invalida no catalogo " + snapshot.getName());
+		return false;
+	}
+
+	/**
+	 * Aplica uma linha de texto, escrita por uma versao anterior, aos registos de
+	 * um catalogo. No snapshot a linha e um registo; no registo de alteracoes
+	 * comeca por '+' (acrescentar), '-' (remover) ou '=' (substituir a linha
+	 * antiga pela nova, separadas por uma quebra de linha).
+	 *
+	 * @param records os registos, por chave
+	 * @param line    a linha, em claro
+	 * @param logged  true se a linha vem do registo de alteracoes
+	 * @throws Exception se a linha for invalida
+	 */
+	private void applyLegacy(Map<String, byte[]> records, String line, boolean logged) throws Exception {
+		if (!logged) {
+			records.put(legacy.key(line), legacy.toRecord(line));
+			return;
+		}
+		char op = line.charAt(0);
+		String body = line.substring(1);
+		if (op == '-') {
+			records.remove(legacy.key(body));
+		} else if (op == '=') {
+			String[] change = body.split("\n", 2);
+			if (!legacy.key(change[0]).equals(legacy.key(change[1])))
+				records.remove(legacy.key(change[0]));
+			records.put(legacy.key(change[1]), legacy.toRecord(change[1]));
+		} else {
+			records.put(legacy.key(body), legacy.toRecord(body));
+		}
+	}
+
+	/**
+	 * Decifra as linhas de um ficheiro. O ficheiro e lido de uma so vez e as
+	 * linhas sao decifradas em paralelo na ForkJoinPool comum. Se alguma linha
+	 * estiver noutro formato de cifra, o catalogo e marcado para ser reescrito.
+	 *
+	 * @param bytes o conteudo do ficheiro
+	 * @return o conteudo de cada linha, em claro
+	 * @throws Exception se ocorrer um erro ao decifrar
+	 */
+	private List<byte[]> decrypt(byte[] bytes) throws Exception {
+		List<String> lines = new ArrayList<>();
+		BufferedReader br = new BufferedReader(
+				new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+		String line;
+		while ((line = br.readLine()) != null)
+			if (!line.isEmpty()) {
+				lines.add(line);
+				outdated |= !RecordCipher.isCurrent(line);
+			}
+		String context = snapshot.getName();
+		try {
+			// as linhas sao independentes; a ordem e mantida pelo collect
+			return lines.parallelStream().map(l -> {
+				try {
+					return RecordCipher.decrypt(l, context);
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (CompletionException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+
+	/**
+	 * Cifra o conteudo de uma linha do snapshot ou do registo. O nome do
+	 * snapshot e autenticado junto com a linha.
+	 *
+	 * @param data o conteudo, em claro
+	 * @return a linha cifrada
+	 * @throws Exception se ocorrer um erro ao cifrar
+	 */
+	private String encrypt(byte[] data) throws Exception {
+		return RecordCipher.encrypt(data, snapshot.getName());
+	}
+
+	/**
+	 * Calcula o hash SHA-256 do conteudo de um snapshot
+	 *
+	 * @param bytes o conteudo
+	 * @return o hash, em Base64
+	 * @throws Exception se o algoritmo nao estiver disponivel
+	 */
+	private static String digest(byte[] bytes) throws Exception {
+		return Base64.getEncoder().encodeToString(CryptoService.digest("SHA-256", bytes));
+	}
+
+}
@@ -0,0 +1,162 @@
+package utils;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * A classe CryptoService fornece as primitivas criptograficas usadas pelo
+ * servidor e pelo cliente sem as procurar nos providers a cada utilizacao.
+ *
+ * As instancias de Cipher, Signature, Mac e MessageDigest sao mantidas em
+ * pools, uma por algoritmo, e emprestadas durante uma operacao. Sao usadas
+ * pools em vez de instancias por thread porque as sessoes correm, por omissao,
+ * em virtual threads, que raramente voltam a ser usadas. Quem recebe uma
+ * primitiva deve inicializa-la (init, initSign, ...) antes de a usar; se a
+ * operacao falhar, a primitiva e descartada.
+ *
+ * Existe um unico SecureRandom partilhado, semeado uma vez.
+ */
+public final class CryptoService {
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final Map<String, Queue<Object>> pools = new ConcurrentHashMap<>();
+
+	private CryptoService() {
+	}
+
+	/**
+	 * Uma operacao sobre uma primitiva emprestada pela pool
+	 *
+	 * @param <P> o tipo da primitiva
+	 * @param <R> o tipo do resultado
+	 */
+	@FunctionalInterface
+	public interface Operation<P, R> {
+
+		/**
+		 * Executa a operacao
+		 *
+		 * @param primitive a primitiva, ainda por inicializar
+		 * @return o resultado da operacao
+		 * @throws Exception se ocorrer um erro na operacao
+		 */
+		R apply(P primitive) throws Exception;
+	}
+
+	/**
+	 * Obtem o SecureRandom partilhado
+	 *
+	 * @return o SecureRandom
+	 */
+	public static SecureRandom random() {
+		return random;
+	}
+
+	/**
+	 * Gera bytes aleatorios com o SecureRandom partilhado
+	 *
+	 * @param length o numero de bytes
+	 * @return os bytes gerados
+	 */
+	public static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Executa uma operacao com um Cipher da pool
+	 *
+	 * @param transformation a transformacao do Cipher
+	 * @param operation      a operacao
+	 * @return o resultado da operacao
+	 * @throws Exception se ocorrer um erro na operacao
+	 */
+	public static <R> R withCipher(String transformation, Operation<Cipher, R> operation) throws Exception {
+		return with("Cipher/" + transformation, () -> Cipher.getInstance(transformation), operation);
+	}
+
+	/**
+	 * Executa uma operacao com uma Signature da pool
+	 *
+	 * @param algorithm o algoritmo de assinatura
+	 * @param operation a operacao
+	 * @return o resultado da operacao
+	 * @throws Exception se ocorrer um erro na operacao
+	 */
+	public static <R> R withSignature(String algorithm, Operation<Signature, R> operation) throws Exception {
+		return with("Signature/" + algorithm, () -> Signature.getInstance(algorithm), operation);
+	}
+
+	/**
+	 * Executa uma operacao com um Mac da pool
+	 *
+	 * @param algorithm o algoritmo do MAC
+	 * @param operation a operacao
+	 * @return o resultado da operacao
+	 * @throws Exception se ocorrer um erro na operacao
+	 */
+	public static <R> R withMac(String algorithm, Operation<Mac, R> operation) throws Exception {
+		return with("Mac/" + algorithm, () -> Mac.getInstance(algorithm), operation);
+	}
+
+	/**
+	 * Calcula o hash de um array de bytes com um MessageDigest da pool
+	 *
+	 * @param algorithm o algoritmo de hash
+	 * @param data      os dados
+	 * @return o hash
+	 * @throws Exception se o algoritmo nao estiver disponivel
+	 */
+	public static byte[] digest(String algorithm, byte[] data) throws Exception {
+		return withDigest(algorithm, digest -> digest.digest(data));
+	}
+
+	/**
+	 * Executa uma operacao com um MessageDigest da pool. O MessageDigest e
+	 * reiniciado antes de voltar a pool.
+	 *
+	 * @param algorithm o algoritmo de hash
+	 * @param operation a operacao
+	 * @return o resultado da operacao
+	 * @throws Exception se ocorrer um erro na operacao
+	 */
+	public static <R> R withDigest(String algorithm, Operation<MessageDigest, R> operation) throws Exception {
+		return with("MessageDigest/" + algorithm, () -> MessageDigest.getInstance(algorithm), digest -> {
+			R result = operation.apply(digest);
+			digest.reset();
+			return result;
+		});
+	}
+
+	/**
+	 * Empresta uma primitiva da pool, criando-a se a pool estiver vazia, e
+	 * devolve-a no fim da operacao
+	 *
+	 * @param key       a identificacao da pool
+	 * @param factory   a criacao de uma nova primitiva
+	 * @param operation a operacao
+	 * @return o resultado da operacao
+	 * @throws Exception se ocorrer um erro na operacao
+	 */
+	@SuppressWarnings("unchecked")
+	private static <P, R> R with(String key, Callable<P> factory, Operation<P, R> operation) throws Exception {
+		Queue<Object> pool = pools.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>());
+		P primitive = (P) pool.poll();
+		if (primitive == null)
+			primitive = factory.call();
+		R result = operation.apply(primitive); // se falhar, a primitiva nao volta a pool
+		pool.offer(primitive);
+		return result;
+	}
+
+}
@@ -0,0 +1,285 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A classe GroupCommit torna duraveis, em grupo, as alteracoes aos ficheiros
+ * dos catalogos e da blockchain. Cada alteracao e escrita de imediato, mas o
+ * fsync e adiado: as alteracoes de todas as sessoes feitas durante uma janela
+ * curta sao sincronizadas em conjunto, com um unico fsync por ficheiro
+ * alterado. Assim o numero de fsyncs depende do numero de janelas e nao do
+ * numero de operacoes.
+ *
+ * Quem altera um ficheiro regista-o com changed. Antes de responder ao
+ * cliente, a sessao chama awaitDurable, que espera ate que as alteracoes feitas
+ * pela thread atual estejam no disco, ou whenDurable, que devolve um resultado
+ * completado nesse momento, para enviar a resposta sem ocupar a thread
+ * enquanto espera.
+ *
+ * Se a sincronizacao de uma janela falhar, as alteracoes dessa janela nao sao
+ * consideradas duraveis: awaitDurable e flush lancam uma excecao a quem tiver
+ * alteracoes nessa janela, e os resultados de whenDurable que ainda estavam
+ * pendentes sao completados com a excecao, por precaucao mesmo que as suas
+ * alteracoes sejam de uma janela posterior.
+ *
+ * A configuracao e feita atraves das seguintes propriedades do sistema:
+ * <ul>
+ * <li>tintolmarket.commitWindow - duracao maxima de uma janela, em
+ * milissegundos, contada a partir da primeira alteracao (por omissao 5)</li>
+ * <li>tintolmarket.commitBatch - numero de alteracoes que fecha a janela antes
+ * do tempo (por omissao 64)</li>
+ * </ul>
+ */
+public final class GroupCommit {
+
+	private static final long WINDOW = Long.getLong("tintolmarket.commitWindow", 5);
+	private static final int MAX_BATCH = Integer.getInteger("tintolmarket.commitBatch", 64);
+
+	private static final Object lock = new Object();
+	private static final ThreadLocal<long[]> lastChange = ThreadLocal.withInitial(() -> new long[2]);
+	private static final Set<File> dirty = new LinkedHashSet<>();
+	private static final TreeMap<Long, CompletableFuture<Void>> waiters = new TreeMap<>();
+	private static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+	// fim de cada janela cuja sincronizacao falhou -> inicio (exclusivo) e erro
+	private static final TreeMap<Long, Failure> failed = new TreeMap<>();
+	private static long written;
+	private static long durable;
+	private static long windowStart;
+	private static Thread committer;
+
+	private GroupCommit() {
+	}
+
+	/**
+	 * Regista a alteracao de um ficheiro, ja escrita mas ainda nao sincronizada
+	 * com o disco
+	 *
+	 * @param file o ficheiro alterado
+	 */
+	public static void changed(File file) {
+		synchronized (lock) {
+			if (committer == null)
+				startCommitter();
+			if (written == durable)
+				windowStart = System.currentTimeMillis();
+			dirty.add(file.getAbsoluteFile());
+			long[] change = lastChange.get();
+			change[0] = ++written;
+			if (change[1] == 0)
+				change[1] = change[0];
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Espera ate que as alteracoes registadas pela thread atual estejam no disco
+	 *
+	 * @throws UncheckedIOException se a sincronizacao de alguma dessas
+	 *                              alteracoes falhou
+	 */
+	public static void awaitDurable() {
+		long[] change = lastChange.get();
+		long first = change[1];
+		change[1] = 0;
+		synchronized (lock) {
+			boolean interrupted = false;
+			while (durable < change[0]) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			checkFailed(first, change[0]);
+		}
+	}
+
+	/**
+	 * Obtem um resultado que fica completo quando as alteracoes registadas ate
+	 * agora pela thread atual estiverem no disco. As acoes que dependem dele sao
+	 * executadas pela thread que sincroniza os ficheiros, pelo que devem ser
+	 * curtas.
+	 *
+	 * @return o resultado, ja completo se nao houver alteracoes por sincronizar,
+	 *         ou completo com uma UncheckedIOException se a sincronizacao falhar
+	 */
+	public static CompletableFuture<Void> whenDurable() {
+		long[] change = lastChange.get();
+		long first = change[1];
+		change[1] = 0;
+		synchronized (lock) {
+			try {
+				checkFailed(first, change[0]);
+			} catch (UncheckedIOException e) {
+				CompletableFuture<Void> result = new CompletableFuture<>();
+				result.completeExceptionally(e);
+				return result;
+			}
+			if (durable >= change[0])
+				return DURABLE;
+			return waiters.computeIfAbsent(change[0], t -> new CompletableFuture<>());
+		}
+	}
+
+	/**
+	 * Espera ate que as alteracoes registadas por todas as threads estejam no
+	 * disco
+	 *
+	 * @throws UncheckedIOException se a sincronizacao de alguma dessas
+	 *                              alteracoes falhou
+	 */
+	public static void flush() {
+		synchronized (lock) {
+			long from = durable + 1;
+			long target = written;
+			boolean interrupted = false;
+			while (durable < target) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (target >= from)
+				checkFailed(from, target);
+		}
+	}
+
+	/**
+	 * Lanca o erro da primeira janela falhada que contenha alguma das
+	 * alteracoes entre first e last. Deve ser chamado com o lock obtido.
+	 *
+	 * @param first a primeira alteracao, ou 0 se nao houver alteracoes
+	 * @param last  a ultima alteracao
+	 * @throws UncheckedIOException se alguma dessas alteracoes falhou
+	 */
+	private static void checkFailed(long first, long last) {
+		if (first == 0)
+			return;
+		Map.Entry<Long, Failure> window = failed.ceilingEntry(first);
+		if (window != null && window.getValue().start < last)
+			throw new UncheckedIOException("Erro ao sincronizar as alteracoes com o disco",
+					window.getValue().error);
+	}
+
+	/**
+	 * Inicia a thread que fecha as janelas e sincroniza os ficheiros
+	 */
+	private static void startCommitter() {
+		committer = new Thread(() -> {
+			while (true) {
+				List<File> files;
+				long target;
+				long start;
+				synchronized (lock) {
+					try {
+						while (written == durable)
+							lock.wait();
+						long remaining;
+						while (written - durable < MAX_BATCH
+								&& (remaining = windowStart + WINDOW - System.currentTimeMillis()) > 0)
+							lock.wait(remaining);
+					} catch (InterruptedException e) {
+						return;
+					}
+					files = new ArrayList<>(dirty);
+					dirty.clear();
+					target = written;
+					start = durable;
+				}
+				IOException error = sync(files);
+				List<CompletableFuture<Void>> completed;
+				synchronized (lock) {
+					durable = target;
+					if (written != durable) // alteracoes feitas durante o fsync
+						windowStart = System.currentTimeMillis();
+					// se falhou, nenhum resultado pendente pode garantir que as
+					// suas alteracoes estao no disco
+					SortedMap<Long, CompletableFuture<Void>> ready = error == null ? waiters.headMap(target, true)
+							: waiters;
+					completed = new ArrayList<>(ready.values());
+					ready.clear();
+					if (error != null)
+						failed.put(target, new Failure(start, error));
+					lock.notifyAll();
+				}
+				UncheckedIOException failure = error == null ? null
+						: new UncheckedIOException("Erro ao sincronizar as alteracoes com o disco", error);
+				for (CompletableFuture<Void> waiter : completed) {
+					if (failure == null)
+						waiter.complete(null);
+					else
+						waiter.completeExceptionally(failure);
+				}
+			}
+		}, "group-commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Sincroniza ficheiros com o disco, e as pastas onde se encontram, para que
+	 * os ficheiros criados ou renomeados tambem fiquem duraveis
+	 *
+	 * @param files os ficheiros a sincronizar
+	 * @return o primeiro erro ao sincronizar um ficheiro, ou null se nao houve
+	 *         erros
+	 */
+	private static IOException sync(List<File> files) {
+		IOException error = null;
+		Set<File> folders = new LinkedHashSet<>();
+		for (File file : files) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(true);
+			} catch (NoSuchFileException e) {
+				// o ficheiro foi removido ou renomeado entretanto
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (error == null)
+					error = e;
+			}
+			folders.add(file.getParentFile());
+		}
+		for (File folder : folders) {
+			try (FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (IOException e) {
+				// nem todos os sistemas permitem sincronizar pastas
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Uma janela cuja sincronizacao falhou
+	 */
+	private static final class Failure {
+
+		private final long start;
+		private final IOException error;
+
+		private Failure(long start, IOException error) {
+			this.start = start;
+			this.error = error;
+		}
+
+	}
+
+}
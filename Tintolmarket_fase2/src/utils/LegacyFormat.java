@@ -0,0 +1,27 @@
+package utils;
+
+/**
+ * A interface LegacyFormat converte as linhas de texto de um catalogo, no
+ * formato das versoes anteriores, em registos binarios. E usada apenas ao
+ * carregar catalogos que ainda nao foram convertidos.
+ */
+public interface LegacyFormat {
+
+	/**
+	 * Obtem a chave do registo correspondente a uma linha
+	 *
+	 * @param line a linha, em claro
+	 * @return a chave do registo
+	 */
+	String key(String line);
+
+	/**
+	 * Converte uma linha num registo binario
+	 *
+	 * @param line a linha, em claro
+	 * @return o registo
+	 * @throws Exception se a linha for invalida
+	 */
+	byte[] toRecord(String line) throws Exception;
+
+}
@@ -0,0 +1,108 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A classe MessageEnvelope cifra as mensagens privadas (talk) com cifra
+ * hibrida. Cada sessao do remetente gera, para cada destinatario, uma chave AES
+ * aleatoria, que e cifrada uma unica vez com a chave publica RSA do
+ * destinatario. Cada mensagem e cifrada com essa chave, em AES-GCM, com um IV
+ * proprio, pelo que o tamanho das mensagens deixa de estar limitado ao bloco
+ * RSA e o envio deixa de custar uma operacao RSA por mensagem.
+ *
+ * Um envelope tem a forma "env:" + chave cifrada + ":" + IV e mensagem
+ * cifrada, ambos em Base64. Como a chave cifrada acompanha cada mensagem, o
+ * destinatario decifra-a uma vez por sessao do remetente e reutiliza-a nas
+ * restantes mensagens dessa sessao.
+ */
+public final class MessageEnvelope {
+
+	private static final String PREFIX = "env:";
+	private static final int IV_SIZE = 12;
+	private static final int TAG_BITS = 128;
+
+	private final SecretKey key;
+	private final String wrappedKey;
+
+	/**
+	 * Cria um envelope para as mensagens de uma sessao enviadas a um
+	 * destinatario
+	 *
+	 * @param recipient a chave publica do destinatario
+	 * @throws Exception se ocorrer um erro ao cifrar a chave
+	 */
+	public MessageEnvelope(PublicKey recipient) throws Exception {
+		this.key = new SecretKeySpec(CryptoService.randomBytes(16), "AES");
+		this.wrappedKey = Base64.getEncoder()
+				.encodeToString(Utils.cipherAsymmetric(Cipher.ENCRYPT_MODE, recipient, key.getEncoded()));
+	}
+
+	/**
+	 * Cifra uma mensagem
+	 *
+	 * @param message a mensagem, em claro
+	 * @return o envelope com a mensagem cifrada
+	 * @throws Exception se ocorrer um erro ao cifrar
+	 */
+	public String seal(String message) throws Exception {
+		byte[] iv = CryptoService.randomBytes(IV_SIZE);
+		byte[] ciphered = CryptoService.withCipher("AES/GCM/NoPadding", cipher -> {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+			return cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+		});
+		byte[] body = new byte[IV_SIZE + ciphered.length];
+		System.arraycopy(iv, 0, body, 0, IV_SIZE);
+		System.arraycopy(ciphered, 0, body, IV_SIZE, ciphered.length);
+		return PREFIX + wrappedKey + ":" + Base64.getEncoder().encodeToString(body);
+	}
+
+	/**
+	 * Indica se uma mensagem recebida esta num envelope, ou se foi cifrada
+	 * diretamente com RSA por uma versao anterior do cliente
+	 *
+	 * @param message a mensagem recebida
+	 * @return true se a mensagem esta num envelope
+	 */
+	public static boolean isEnvelope(String message) {
+		return message.startsWith(PREFIX);
+	}
+
+	/**
+	 * Decifra uma mensagem recebida num envelope
+	 *
+	 * @param envelope   o envelope
+	 * @param privateKey a chave privada do destinatario
+	 * @param keys       as chaves ja decifradas, pela sua forma cifrada; a chave
+	 *                   do envelope e acrescentada se ainda nao existir
+	 * @return a mensagem, em claro
+	 * @throws Exception se o envelope for invalido ou ocorrer um erro ao
+	 *                   decifrar
+	 */
+	public static String open(String envelope, PrivateKey privateKey, Map<String, SecretKey> keys) throws Exception {
+		String[] parts = envelope.substring(PREFIX.length()).split(":", 2);
+		SecretKey key = keys.get(parts[0]);
+		if (key == null) {
+			byte[] unwrapped = Utils.cipherAsymmetric(Cipher.DECRYPT_MODE, privateKey,
+					Base64.getDecoder().decode(parts[0]));
+			key = new SecretKeySpec(unwrapped, "AES");
+			keys.put(parts[0], key);
+		}
+		SecretKey sessionKey = key;
+		byte[] body = Base64.getDecoder().decode(parts[1]);
+		byte[] message = CryptoService.withCipher("AES/GCM/NoPadding", cipher -> {
+			cipher.init(Cipher.DECRYPT_MODE, sessionKey, new GCMParameterSpec(TAG_BITS, body, 0, IV_SIZE));
+			return cipher.doFinal(body, IV_SIZE, body.length - IV_SIZE);
+		});
+		return new String(message, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,102 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+import application.TintolmarketServer;
+
+/**
+ * A classe RecordCipher cifra as linhas guardadas pelo servidor: as entradas
+ * dos catalogos e dos seus registos de alteracoes e as entradas de HMAC.txt.
+ *
+ * Por omissao cada linha e cifrada com AES-GCM, com a chave derivada da
+ * password de cifra uma unica vez, no arranque (ver
+ * TintolmarketServer.getRecordKey), e um IV aleatorio de 12 bytes. O GCM
+ * garante a confidencialidade e a integridade de cada linha numa so passagem.
+ * O nome do ficheiro e autenticado junto com a linha, pelo que uma linha nao
+ * pode ser copiada para outro ficheiro. O hash encadeado de HMAC.txt continua
+ * a proteger cada ficheiro como um todo (linhas removidas, reordenadas ou
+ * truncadas).
+ *
+ * As linhas AES-GCM comecam pelo prefixo "gcm:", que nao existe em Base64. As
+ * linhas sem prefixo estao no formato das versoes anteriores (PBE com
+ * AES-CBC) e continuam a ser lidas; sao convertidas quando o ficheiro e
+ * reescrito.
+ *
+ * A configuracao e feita atraves da seguinte propriedade do sistema:
+ * <ul>
+ * <li>tintolmarket.storageCipher - "gcm" (por omissao) ou "pbe", que escreve
+ * as linhas no formato das versoes anteriores</li>
+ * </ul>
+ */
+public final class RecordCipher {
+
+	private static final String GCM = "gcm:";
+	private static final int IV_SIZE = 12;
+	private static final int TAG_BITS = 128;
+	private static final boolean USE_GCM = !"pbe".equals(System.getProperty("tintolmarket.storageCipher"));
+
+	private RecordCipher() {
+	}
+
+	/**
+	 * Cifra o conteudo de uma linha
+	 *
+	 * @param data    o conteudo, em claro
+	 * @param context o nome do ficheiro onde a linha e guardada
+	 * @return a linha cifrada
+	 * @throws Exception se ocorrer um erro ao cifrar
+	 */
+	public static String encrypt(byte[] data, String context) throws Exception {
+		if (!USE_GCM)
+			return Base64.getEncoder()
+					.encodeToString(Utils.cipherSymmetric(Cipher.ENCRYPT_MODE, TintolmarketServer.getFileKey(), data));
+		byte[] iv = CryptoService.randomBytes(IV_SIZE);
+		byte[] ciphered = CryptoService.withCipher("AES/GCM/NoPadding", cipher -> {
+			cipher.init(Cipher.ENCRYPT_MODE, TintolmarketServer.getRecordKey(), new GCMParameterSpec(TAG_BITS, iv));
+			cipher.updateAAD(context.getBytes(StandardCharsets.UTF_8));
+			return cipher.doFinal(data);
+		});
+		byte[] res = new byte[IV_SIZE + ciphered.length];
+		System.arraycopy(iv, 0, res, 0, IV_SIZE);
+		System.arraycopy(ciphered, 0, res, IV_SIZE, ciphered.length);
+		return GCM + Base64.getEncoder().encodeToString(res);
+	}
+
+	/**
+	 * Decifra uma linha, em qualquer dos formatos
+	 *
+	 * @param line    a linha cifrada
+	 * @param context o nome do ficheiro de onde a linha foi lida
+	 * @return o conteudo, em claro
+	 * @throws Exception se a linha tiver sido alterada ou ocorrer um erro ao
+	 *                   decifrar
+	 */
+	public static byte[] decrypt(String line, String context) throws Exception {
+		if (!line.startsWith(GCM))
+			return Utils.cipherSymmetric(Cipher.DECRYPT_MODE, TintolmarketServer.getFileKey(),
+					Base64.getDecoder().decode(line));
+		byte[] data = Base64.getDecoder().decode(line.substring(GCM.length()));
+		return CryptoService.withCipher("AES/GCM/NoPadding", cipher -> {
+			cipher.init(Cipher.DECRYPT_MODE, TintolmarketServer.getRecordKey(),
+					new GCMParameterSpec(TAG_BITS, data, 0, IV_SIZE));
+			cipher.updateAAD(context.getBytes(StandardCharsets.UTF_8));
+			return cipher.doFinal(data, IV_SIZE, data.length - IV_SIZE);
+		});
+	}
+
+	/**
+	 * Indica se uma linha esta no formato em uso, ou se deve ser convertida
+	 * quando o ficheiro for reescrito
+	 *
+	 * @param line a linha cifrada
+	 * @return true se a linha esta no formato configurado
+	 */
+	public static boolean isCurrent(String line) {
+		return line.startsWith(GCM) == USE_GCM;
+	}
+
+}
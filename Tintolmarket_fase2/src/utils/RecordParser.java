@@ -0,0 +1,23 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * A interface RecordParser converte os registos binarios de um catalogo nos
+ * objetos correspondentes. Os registos sao convertidos em paralelo, pelo que a
+ * conversao nao deve alterar estado partilhado.
+ *
+ * @param <T> o tipo dos objetos do catalogo
+ */
+public interface RecordParser<T> {
+
+	/**
+	 * Converte um registo
+	 *
+	 * @param record o registo, escrito com RecordWriter
+	 * @return o objeto correspondente
+	 * @throws IOException se o registo for invalido
+	 */
+	T parse(byte[] record) throws IOException;
+
+}
@@ -0,0 +1,94 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A classe RecordReader le os campos de um registo binario escrito com
+ * RecordWriter, pela ordem em que foram escritos.
+ */
+public class RecordReader {
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Construtor da classe
+	 *
+	 * @param record os bytes do registo
+	 */
+	public RecordReader(byte[] record) {
+		this.buffer = ByteBuffer.wrap(record);
+	}
+
+	/**
+	 * Le um byte do registo
+	 *
+	 * @return o valor lido
+	 * @throws IOException se o registo estiver truncado
+	 */
+	public byte getByte() throws IOException {
+		try {
+			return buffer.get();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Registo truncado");
+		}
+	}
+
+	/**
+	 * Le um inteiro do registo
+	 *
+	 * @return o valor lido
+	 * @throws IOException se o registo estiver truncado
+	 */
+	public int getInt() throws IOException {
+		try {
+			return buffer.getInt();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Registo truncado");
+		}
+	}
+
+	/**
+	 * Le um double do registo
+	 *
+	 * @return o valor lido
+	 * @throws IOException se o registo estiver truncado
+	 */
+	public double getDouble() throws IOException {
+		try {
+			return buffer.getDouble();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Registo truncado");
+		}
+	}
+
+	/**
+	 * Le uma string do registo
+	 *
+	 * @return o valor lido
+	 * @throws IOException se o registo estiver truncado
+	 */
+	public String getString() throws IOException {
+		int length = getInt();
+		if (length < 0 || length > buffer.remaining())
+			throw new IOException("Registo truncado");
+		String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	/**
+	 * Le os bytes que faltam ler no registo
+	 *
+	 * @return os bytes restantes
+	 */
+	public byte[] getRemaining() {
+		byte[] rest = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+		buffer.position(buffer.limit());
+		return rest;
+	}
+
+}
@@ -0,0 +1,102 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A classe RecordWriter constroi um registo binario dos catalogos. Os campos
+ * sao escritos pela ordem em que sao adicionados; as strings sao precedidas do
+ * seu tamanho, pelo que podem conter qualquer caracter.
+ *
+ * O registo e lido, pela mesma ordem, com RecordReader.
+ */
+public class RecordWriter {
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+
+	/**
+	 * Adiciona um byte ao registo
+	 *
+	 * @param value o valor
+	 * @return este registo
+	 */
+	public RecordWriter putByte(int value) {
+		try {
+			out.writeByte(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // nao acontece com arrays
+		}
+		return this;
+	}
+
+	/**
+	 * Adiciona um inteiro ao registo
+	 *
+	 * @param value o valor
+	 * @return este registo
+	 */
+	public RecordWriter putInt(int value) {
+		try {
+			out.writeInt(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Adiciona um double ao registo
+	 *
+	 * @param value o valor
+	 * @return este registo
+	 */
+	public RecordWriter putDouble(double value) {
+		try {
+			out.writeDouble(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Adiciona uma string ao registo, em UTF-8 e precedida do seu tamanho
+	 *
+	 * @param value o valor
+	 * @return este registo
+	 */
+	public RecordWriter putString(String value) {
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		putInt(utf8.length);
+		return putBytes(utf8);
+	}
+
+	/**
+	 * Adiciona bytes ao registo, sem o seu tamanho
+	 *
+	 * @param value os bytes
+	 * @return este registo
+	 */
+	public RecordWriter putBytes(byte[] value) {
+		try {
+			out.write(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Obtem o registo construido
+	 *
+	 * @return os bytes do registo
+	 */
+	public byte[] toByteArray() {
+		return bytes.toByteArray();
+	}
+
+}
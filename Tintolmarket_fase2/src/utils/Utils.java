@@ -2,18 +2,28 @@ package utils;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.Key;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.Signature;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import javax.crypto.Cipher;
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEParameterSpec;
@@ -27,40 +37,166 @@ import exceptions.InvalidHashException;
  */
 public class Utils {
 
+	private static final ThreadLocal<Map<File, List<byte[]>>> batch = new ThreadLocal<>();
+
+	/**
+	 * Tamanho, em bytes, das assinaturas Ed25519
+	 */
+	private static final int ED25519_SIGNATURE_SIZE = 64;
+
+	/**
+	 * Prefixo dos hashes encadeados no ficheiro HMAC.txt
+	 */
+	private static final String CHAIN = "chain:";
+
+	private static Map<String, String[]> hmacs;
+
+	/**
+	 * Protege as entradas de HMAC.txt e a escrita do ficheiro
+	 */
+	private static final Object hmacLock = new Object();
+
+	/**
+	 * Um lock por ficheiro, pelo nome, para o calculo do seu hash
+	 */
+	private static final Map<String, Object> fileLocks = new ConcurrentHashMap<>();
+
+	/**
+	 * Guarda um registo num catalogo cifrado, substituindo o registo com a mesma
+	 * chave, se existir.
+	 * 
+	 * A alteracao e acrescentada ao registo de alteracoes do ficheiro (ver
+	 * ChangeLog), sem reescrever o ficheiro. Se a thread atual tiver um lote
+	 * aberto (ver beginBatch), a alteracao so e escrita quando o lote terminar.
+	 * As escritas em ficheiros diferentes decorrem em paralelo; as do mesmo
+	 * ficheiro sao serializadas pelo seu registo de alteracoes.
+	 * 
+	 * @param file   O ficheiro do catalogo.
+	 * @param key    A chave do registo.
+	 * @param record O registo, escrito com RecordWriter.
+	 */
+	public static void putRecord(File file, String key, byte[] record) {
+		byte[] entry = ChangeLog.put(key, record);
+		if (!addToBatch(file, entry))
+			log(file, Collections.singletonList(entry));
+	}
+
+	/**
+	 * Remove um registo de um catalogo cifrado.
+	 * 
+	 * Se a thread atual tiver um lote aberto (ver beginBatch), a alteracao so e
+	 * escrita quando o lote terminar.
+	 * 
+	 * @param file O ficheiro do catalogo.
+	 * @param key  A chave do registo.
+	 */
+	public static void removeRecord(File file, String key) {
+		byte[] entry = ChangeLog.remove(key);
+		if (!addToBatch(file, entry))
+			log(file, Collections.singletonList(entry));
+	}
+
 	/**
-	 * Substitui uma linha especifica em um arquivo por outra. Se a nova linha for
-	 * nula, a linha antiga sera removida.
+	 * Le os registos de um catalogo cifrado, incluindo as alteracoes que estao
+	 * apenas no seu registo de alteracoes, e converte-os com o parser dado. Um
+	 * catalogo ainda no formato de texto das versoes anteriores e convertido e
+	 * reescrito no formato binario.
 	 * 
-	 * @param file    O arquivo onde a linha sera substituida.
-	 * @param oldLine A linha antiga que sera substituida ou removida.
-	 * @param newLine A nova linha que substituira a antiga. Se for null, a linha
-	 *                antiga sera removida.
+	 * As linhas sao decifradas, e os registos convertidos, em paralelo na
+	 * ForkJoinPool comum. Catalogos diferentes podem ser lidos ao mesmo tempo.
+	 * 
+	 * @param file   O ficheiro a ler.
+	 * @param legacy A conversao das linhas de texto do catalogo.
+	 * @param parser A conversao dos registos nos objetos do catalogo.
+	 * @return os objetos do catalogo, pela ordem em que foram criados
+	 * @throws Exception se ocorrer um erro na leitura
 	 */
-	public static synchronized void replaceLine(File file, String oldLine, String newLine) {
+	public static <T> List<T> readRecords(File file, LegacyFormat legacy, RecordParser<T> parser) throws Exception {
+		List<byte[]> records = ChangeLog.of(file).load(legacy);
 		try {
-			SecretKey sk = TintolmarketServer.getFileKey();
-			File newFile = new File("temp.txt");
-			newFile.createNewFile();
-			FileWriter fw = new FileWriter(newFile, true);
-			Scanner sc = new Scanner(file);
-			while (sc.hasNextLine()) {
-				String next = cipherSymmetricString(Cipher.DECRYPT_MODE, sk, sc.nextLine());
-				if (next.equals(oldLine)) {
-					if (newLine != null)
-						fw.append(cipherSymmetricString(Cipher.ENCRYPT_MODE, sk, newLine) + "\r\n");
-				} else
-					fw.append(cipherSymmetricString(Cipher.ENCRYPT_MODE, sk, next) + "\r\n");
-			}
-			fw.close();
-			sc.close();
-			file.delete();
-			newFile.renameTo(file);
-			updateHash(new File(file.getAbsolutePath()));
+			return records.parallelStream().map(record -> {
+				try {
+					return parser.parse(record);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Abre um lote de alteracoes na thread atual. Ate ser chamado commitBatch, as
+	 * alteracoes feitas com putRecord e removeRecord sao apenas registadas, e as
+	 * de cada ficheiro sao depois escritas de uma so vez.
+	 */
+	public static void beginBatch() {
+		batch.set(new LinkedHashMap<>());
+	}
+
+	/**
+	 * Escreve as alteracoes registadas no lote da thread atual e fecha-o. O
+	 * registo de cada ficheiro recebe uma unica escrita.
+	 */
+	public static void commitBatch() {
+		Map<File, List<byte[]>> changes = batch.get();
+		batch.remove();
+		if (changes != null)
+			for (Map.Entry<File, List<byte[]>> entry : changes.entrySet())
+				log(entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Regista uma alteracao no lote da thread atual, se existir
+	 * 
+	 * @param file  o ficheiro a alterar
+	 * @param entry a entrada a acrescentar ao registo de alteracoes
+	 * @return true se a alteracao foi registada, false se nao existir um lote
+	 */
+	private static boolean addToBatch(File file, byte[] entry) {
+		Map<File, List<byte[]>> changes = batch.get();
+		if (changes == null)
+			return false;
+		changes.computeIfAbsent(file.getAbsoluteFile(), f -> new ArrayList<>()).add(entry);
+		return true;
+	}
+
+	/**
+	 * Acrescenta uma sequencia de alteracoes ao registo de um ficheiro cifrado,
+	 * ou coloca-a na fila de escrita se a escrita diferida estiver ativa (ver
+	 * WriteBehind)
+	 * 
+	 * @param file    o ficheiro a alterar
+	 * @param changes as entradas a acrescentar
+	 * @throws IllegalStateException se as alteracoes nao forem escritas
+	 */
+	private static void log(File file, List<byte[]> changes) {
+		if (WriteBehind.enabled()) {
+			WriteBehind.submit(file, changes);
+			return;
+		}
+		try {
+			ChangeLog.of(file).append(changes);
 		} catch (Exception e) {
 			e.printStackTrace();
+			throw new IllegalStateException("Erro ao gravar as alteracoes", e);
 		}
 	}
 
+	/**
+	 * Termina a escrita dos catalogos quando o servidor termina: escreve as
+	 * alteracoes da escrita diferida, espera pelas escritas em curso, para que
+	 * nenhum ficheiro fique sem o hash atualizado, e sincroniza tudo com o disco.
+	 * Depois de chamado, as alteracoes aos catalogos deixam de ser escritas.
+	 */
+	public static void closeStorage() {
+		if (WriteBehind.enabled())
+			WriteBehind.close();
+		ChangeLog.closeAll();
+		GroupCommit.flush();
+	}
+
 	/**
 	 * Assina o nonce com a chave privada fornecida
 	 *
@@ -81,10 +217,11 @@ public class Utils {
 	 */
 	public static byte[] signByteArray(PrivateKey pk, byte[] nonce) {
 		try {
-			Signature s = Signature.getInstance("SHA256withRSA");
-			s.initSign(pk);
-			s.update(nonce);
-			return s.sign();
+			return CryptoService.withSignature(signatureAlgorithm(pk), s -> {
+				s.initSign(pk);
+				s.update(nonce);
+				return s.sign();
+			});
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -101,16 +238,59 @@ public class Utils {
 	 */
 	public static boolean verifySignature(PublicKey publicKey, byte[] nonce, byte[] encryptedNonce) {
 		try {
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			signature.initVerify(publicKey);
-			signature.update(nonce);
-			return signature.verify(encryptedNonce);
+			return CryptoService.withSignature(signatureAlgorithm(publicKey), signature -> {
+				signature.initVerify(publicKey);
+				signature.update(nonce);
+				return signature.verify(encryptedNonce);
+			});
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 		}
 		return false;
 	}
 
+	/**
+	 * Verifica uma assinatura feita com uma de varias chaves, por exemplo as
+	 * chaves RSA e Ed25519 do servidor. Cada chave so e experimentada se a
+	 * assinatura tiver o tamanho das assinaturas do seu algoritmo.
+	 * 
+	 * @param publicKeys     as chaves publicas aceites
+	 * @param nonce          o nonce original
+	 * @param encryptedNonce o nonce encriptado
+	 * @return true se a assinatura e valida para alguma das chaves, false caso
+	 *         contrario
+	 */
+	public static boolean verifySignature(List<PublicKey> publicKeys, byte[] nonce, byte[] encryptedNonce) {
+		for (PublicKey publicKey : publicKeys)
+			if (isEdDSA(publicKey) == (encryptedNonce.length == ED25519_SIGNATURE_SIZE)
+					&& verifySignature(publicKey, nonce, encryptedNonce))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Obtem o algoritmo de assinatura a usar com uma chave. As chaves Ed25519
+	 * assinam os dados diretamente; as chaves RSA usam SHA256withRSA. Como o
+	 * algoritmo e escolhido pela chave, utilizadores com chaves de algoritmos
+	 * diferentes podem coexistir.
+	 * 
+	 * @param key a chave privada ou publica
+	 * @return o nome do algoritmo de assinatura
+	 */
+	public static String signatureAlgorithm(Key key) {
+		return isEdDSA(key) ? "Ed25519" : "SHA256withRSA";
+	}
+
+	/**
+	 * Indica se uma chave e uma chave EdDSA (Ed25519)
+	 * 
+	 * @param key a chave
+	 * @return true se a chave e EdDSA
+	 */
+	private static boolean isEdDSA(Key key) {
+		return "EdDSA".equals(key.getAlgorithm()) || "Ed25519".equals(key.getAlgorithm());
+	}
+
 	/**
 	 * Cifra ou decifra assimetricamente uma string
 	 * 
@@ -143,12 +323,13 @@ public class Utils {
 	 * @throws Exception
 	 */
 	public static byte[] cipherAsymmetric(int mode, Key key, byte[] data) throws Exception {
-		Cipher cipher = Cipher.getInstance("RSA");
-		if (mode == Cipher.DECRYPT_MODE)
-			cipher.init(Cipher.DECRYPT_MODE, (PrivateKey) key);
-		else
-			cipher.init(Cipher.ENCRYPT_MODE, (PublicKey) key);
-		return cipher.doFinal(data);
+		return CryptoService.withCipher("RSA", cipher -> {
+			if (mode == Cipher.DECRYPT_MODE)
+				cipher.init(Cipher.DECRYPT_MODE, (PrivateKey) key);
+			else
+				cipher.init(Cipher.ENCRYPT_MODE, (PublicKey) key);
+			return cipher.doFinal(data);
+		});
 	}
 
 	/**
@@ -185,72 +366,127 @@ public class Utils {
 	public static byte[] cipherSymmetric(int mode, SecretKey key, byte[] data) throws Exception {
 		byte[] salt = { (byte) 0xc9, (byte) 0x36, (byte) 0x78, (byte) 0x99, (byte) 0x52, (byte) 0x3e, (byte) 0xea,
 				(byte) 0xf2 };
-		Cipher cipher = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
-		byte[] res = null;
-		if (mode == Cipher.ENCRYPT_MODE) {
-			SecureRandom random = new SecureRandom();
-			byte[] iv = new byte[16];
-			random.nextBytes(iv);
-			cipher.init(mode, key, new PBEParameterSpec(salt, 20, new IvParameterSpec(iv)));
-			byte[] ciphered = cipher.doFinal(data);
-			res = new byte[16 + ciphered.length];
-			System.arraycopy(iv, 0, res, 0, 16);
-			System.arraycopy(ciphered, 0, res, 16, ciphered.length); // dar append do iv ao cifrado
+		return CryptoService.withCipher("PBEWithHmacSHA256AndAES_128", cipher -> {
+			byte[] res = null;
+			if (mode == Cipher.ENCRYPT_MODE) {
+				byte[] iv = CryptoService.randomBytes(16);
+				cipher.init(mode, key, new PBEParameterSpec(salt, 20, new IvParameterSpec(iv)));
+				byte[] ciphered = cipher.doFinal(data);
+				res = new byte[16 + ciphered.length];
+				System.arraycopy(iv, 0, res, 0, 16);
+				System.arraycopy(ciphered, 0, res, 16, ciphered.length); // dar append do iv ao cifrado
 
-		} else {
-			byte[] iv = new byte[16];
-			System.arraycopy(data, 0, iv, 0, iv.length); // extrair iv do cifrado
-			cipher.init(mode, key, new PBEParameterSpec(salt, 20, new IvParameterSpec(iv)));
-			res = cipher.doFinal(data, 16, data.length - 16);
-		}
-		return res;
+			} else {
+				byte[] iv = new byte[16];
+				System.arraycopy(data, 0, iv, 0, iv.length); // extrair iv do cifrado
+				cipher.init(mode, key, new PBEParameterSpec(salt, 20, new IvParameterSpec(iv)));
+				res = cipher.doFinal(data, 16, data.length - 16);
+			}
+			return res;
+		});
 	}
 
 	/**
-	 * Atualiza o hash do file fornecido
+	 * Atualiza o hash do file fornecido, calculando-o sobre todo o ficheiro
 	 * 
 	 * @param file o ficheiro a atualizar
 	 * @throws InvalidHashException
 	 */
 	public static void updateHash(File file) throws InvalidHashException {
-		try {
-			File macs = new File("txtFiles//HMAC.txt");
-			if (!macs.exists()) {
-				macs.createNewFile();
-				if (file.exists())
-					throw new InvalidHashException("Ficheiro HMACS nao encontrado");
-			} else {
-				SecretKey key = TintolmarketServer.getFileKey();
-				File newMacs = new File("txtFiles//temp.txt");
-				newMacs.createNewFile();
-				FileWriter fw = new FileWriter(newMacs, true);
-				Scanner sc = new Scanner(macs);
-				boolean found = false;
-				String newLine = Utils.cipherSymmetricString(Cipher.ENCRYPT_MODE, key,
-						file.getName() + ":" + calculateHmac(file)) + "\r\n";
-				while (sc.hasNextLine()) {
-					String encryptedLine = sc.nextLine();
-					String decryptedLine = Utils.cipherSymmetricString(Cipher.DECRYPT_MODE, key, encryptedLine);
-					if (decryptedLine.startsWith(file.getName())) {
-						fw.append(newLine);
-						found = true;
-					} else {
-						fw.append(encryptedLine + "\r\n");
-					}
-				}
-				if (!found)
-					fw.append(newLine);
-				fw.close();
-				sc.close();
-				macs.delete();
-				newMacs.renameTo(macs);
+		synchronized (lockOf(file)) {
+			try {
+				if (!hmacFileExists(file))
+					return;
+				storeHash(file, chainHash(readBytes(file)));
+			} catch (InvalidHashException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-		} catch (InvalidHashException e) {
-			throw e;
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
+	}
 
+	/**
+	 * Atualiza o hash de um ficheiro ao qual foram acrescentadas linhas. O hash
+	 * anterior e estendido apenas com as linhas novas, pelo que o custo nao
+	 * depende do tamanho do ficheiro.
+	 * 
+	 * @param file     o ficheiro a atualizar
+	 * @param appended o texto acrescentado ao ficheiro, terminado numa quebra de
+	 *                 linha
+	 * @throws Exception se o hash nao puder ser guardado; o hash guardado fica
+	 *                   o anterior
+	 */
+	public static void appendHash(File file, String appended) throws Exception {
+		synchronized (lockOf(file)) {
+			if (!hmacFileExists(file))
+				return;
+			String hmac = storedHash(file);
+			if (hmac == null || !hmac.startsWith(CHAIN)) { // sem hash encadeado anterior
+				storeHash(file, chainHash(readBytes(file)));
+				return;
+			}
+			byte[] head = Base64.getDecoder().decode(hmac.substring(CHAIN.length()));
+			byte[] data = appended.getBytes(StandardCharsets.UTF_8);
+			storeHash(file, CHAIN + Base64.getEncoder().encodeToString(chain(head, data)));
+		}
+	}
+
+	/**
+	 * Substitui o conteudo de varios ficheiros de forma a que, se o servidor
+	 * parar a meio, cada ficheiro fique com o conteudo antigo ou com o novo, e
+	 * com o hash correspondente. O novo conteudo e escrito e sincronizado em
+	 * ficheiros temporarios; depois os hashes de todos os ficheiros sao guardados
+	 * numa unica escrita de HMAC.txt, e so entao os temporarios sao movidos,
+	 * pela ordem dada, para o lugar dos ficheiros. Um temporario que ficou por
+	 * mover e tratado no arranque por recoverReplacement.
+	 * 
+	 * @param contents o novo conteudo de cada ficheiro, pela ordem em que os
+	 *                 ficheiros devem ser substituidos
+	 * @throws Exception se ocorrer um erro na escrita
+	 */
+	public static void replaceFiles(Map<File, byte[]> contents) throws Exception {
+		Map<File, String> hashes = new LinkedHashMap<>();
+		for (Map.Entry<File, byte[]> entry : contents.entrySet()) {
+			try (FileChannel channel = FileChannel.open(replacementOf(entry.getKey()).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.wrap(entry.getValue());
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			}
+			hashes.put(entry.getKey(), chainHash(entry.getValue()));
+		}
+		if (hmacFileExists(contents.keySet().iterator().next())) {
+			storeHashes(hashes);
+			GroupCommit.flush(); // os novos hashes ficam no disco antes da troca
+		}
+		for (File file : contents.keySet()) {
+			Files.move(replacementOf(file).toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			GroupCommit.changed(file);
+		}
+	}
+
+	/**
+	 * Termina ou desfaz, no arranque, uma substituicao feita com replaceFiles que
+	 * foi interrompida. Se o ficheiro temporario tiver o hash guardado em
+	 * HMAC.txt, os hashes ja foram atualizados e o temporario passa a ser o
+	 * ficheiro; caso contrario foi escrito apenas em parte e e apagado.
+	 * 
+	 * @param file o ficheiro
+	 * @throws Exception se ocorrer um erro ao ler ou mover os ficheiros
+	 */
+	public static void recoverReplacement(File file) throws Exception {
+		File replacement = replacementOf(file);
+		if (!replacement.exists())
+			return;
+		String stored = new File("txtFiles//HMAC.txt").exists() ? storedHash(file) : null;
+		if (stored != null && stored.equals(chainHash(readBytes(replacement))))
+			Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		else
+			Files.delete(replacement.toPath());
 	}
 
 	/**
@@ -260,56 +496,224 @@ public class Utils {
 	 * @throws InvalidHashException
 	 */
 	public static void verifyIntegrity(File file) throws Exception {
-		Scanner sc = null;
 		File txtFolder = new File("txtFiles");
+		if (!txtFolder.exists())
+			txtFolder.mkdir();
+		synchronized (lockOf(file)) {
+			if (!hmacFileExists(file) || !file.exists())
+				return;
+			String stored = storedHash(file);
+			if (stored == null)
+				throw new InvalidHashException("HMAC nao encontrado");
+			String hmac;
+			if (stored.startsWith(CHAIN))
+				hmac = chainHash(readBytes(file));
+			else // hash escrito por uma versao anterior, sobre todo o ficheiro
+				hmac = calculateHmac(file);
+			if (!stored.equals(hmac))
+				throw new InvalidHashException("HMAC invalido");
+		}
+	}
+
+	/**
+	 * Verifica se o ficheiro HMAC.txt existe, criando-o se necessario
+	 * 
+	 * @param file o ficheiro cujo hash se pretende usar
+	 * @return true se o ficheiro HMAC.txt ja existia
+	 * @throws Exception se o ficheiro HMAC.txt nao existir mas file existir
+	 */
+	private static boolean hmacFileExists(File file) throws Exception {
 		File macs = new File("txtFiles//HMAC.txt");
-		try {
-			if (!txtFolder.exists())
-				txtFolder.mkdir();
-			if (!macs.exists()) {
-				macs.createNewFile();
-				if (file.exists())
-					throw new InvalidHashException("Ficheiro HMACS nao encontrado");
-			} else {
-				if (!file.exists())
-					return;
-				SecretKey key = TintolmarketServer.getFileKey();
-				sc = new Scanner(macs);
-				boolean found = false;
-				while (sc.hasNextLine()) {
-					String line = Utils.cipherSymmetricString(Cipher.DECRYPT_MODE, key, sc.nextLine());
-					if (line.startsWith(file.getName())) {
-						found = true;
-						String hmac = line.split(":")[1];
-						if (!hmac.equals(calculateHmac(file))) {
-							sc.close();
-							throw new InvalidHashException("HMAC invalido");
-						}
-					}
-					if (!sc.hasNextLine() && !found) {
-						sc.close();
-						throw new InvalidHashException("HMAC nao encontrado");
-					}
-				}
-				sc.close();
+		synchronized (hmacLock) {
+			if (macs.exists())
+				return true;
+			macs.createNewFile();
+			hmacs = null;
+		}
+		if (file.exists())
+			throw new InvalidHashException("Ficheiro HMACS nao encontrado");
+		return false;
+	}
+
+	/**
+	 * Obtem o lock usado no calculo do hash de um ficheiro. Os hashes de
+	 * ficheiros diferentes sao calculados em paralelo; so a atualizacao de
+	 * HMAC.txt e feita em exclusao mutua.
+	 * 
+	 * @param file o ficheiro
+	 * @return o lock do ficheiro
+	 */
+	private static Object lockOf(File file) {
+		return fileLocks.computeIfAbsent(file.getName(), name -> new Object());
+	}
+
+	/**
+	 * Obtem o hash guardado em HMAC.txt para um ficheiro
+	 * 
+	 * @param file o ficheiro
+	 * @return o hash em claro, ou null se o ficheiro nao tiver hash
+	 * @throws Exception se ocorrer um erro na leitura de HMAC.txt
+	 */
+	private static String storedHash(File file) throws Exception {
+		synchronized (hmacLock) {
+			String[] entry = hmacs().get(file.getName());
+			return entry == null ? null : entry[0];
+		}
+	}
+
+	/**
+	 * Obtem as entradas do ficheiro HMAC.txt, que sao lidas uma unica vez e
+	 * mantidas em memoria. Deve ser chamado com hmacLock.
+	 * 
+	 * @return as entradas, por nome de ficheiro: o hash em claro e a linha cifrada
+	 * @throws Exception se ocorrer um erro na leitura
+	 */
+	private static Map<String, String[]> hmacs() throws Exception {
+		if (hmacs == null) {
+			Map<String, String[]> entries = new LinkedHashMap<>();
+			Scanner sc = new Scanner(new File("txtFiles//HMAC.txt"));
+			while (sc.hasNextLine()) {
+				String encryptedLine = sc.nextLine();
+				String[] line = new String(RecordCipher.decrypt(encryptedLine, "HMAC.txt"), StandardCharsets.UTF_8)
+						.split(":", 2);
+				if (!RecordCipher.isCurrent(encryptedLine)) // convertida na proxima escrita de HMAC.txt
+					encryptedLine = encryptHash(line[0], line[1]);
+				entries.put(line[0], new String[] { line[1], encryptedLine });
 			}
-		} catch (Exception e) {
-			throw e;
+			sc.close();
+			hmacs = entries;
 		}
+		return hmacs;
+	}
+
+	/**
+	 * Guarda o hash de um ficheiro no ficheiro HMAC.txt. Apenas a entrada do
+	 * ficheiro e cifrada de novo; as restantes sao copiadas da memoria.
+	 * 
+	 * @param file o ficheiro
+	 * @param hmac o novo hash
+	 * @throws Exception se ocorrer um erro na escrita
+	 */
+	private static void storeHash(File file, String hmac) throws Exception {
+		storeHashes(Collections.singletonMap(file, hmac));
 	}
 
 	/**
-	 * Calcula o hmac do ficheiro fornecido
+	 * Guarda os hashes de varios ficheiros no ficheiro HMAC.txt, numa unica
+	 * escrita. O novo HMAC.txt substitui o anterior de forma atomica, e os
+	 * hashes em memoria so mudam depois disso, pelo que uma escrita falhada nao
+	 * altera nenhum hash.
+	 * 
+	 * @param hashes o novo hash de cada ficheiro
+	 * @throws Exception se ocorrer um erro na escrita
+	 */
+	private static void storeHashes(Map<File, String> hashes) throws Exception {
+		// as entradas sao cifradas fora do lock de HMAC.txt
+		Map<String, String[]> stored = new LinkedHashMap<>();
+		for (Map.Entry<File, String> hash : hashes.entrySet())
+			stored.put(hash.getKey().getName(),
+					new String[] { hash.getValue(), encryptHash(hash.getKey().getName(), hash.getValue()) });
+		synchronized (hmacLock) {
+			Map<String, String[]> entries = new LinkedHashMap<>(hmacs());
+			entries.putAll(stored);
+			File macs = new File("txtFiles//HMAC.txt");
+			File newMacs = new File("txtFiles//HMAC.txt.tmp");
+			FileWriter fw = new FileWriter(newMacs);
+			for (String[] entry : entries.values())
+				fw.append(entry[1] + "\r\n");
+			fw.close();
+			Files.move(newMacs.toPath(), macs.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			hmacs = entries;
+			GroupCommit.changed(macs);
+		}
+	}
+
+	/**
+	 * Cifra uma entrada de HMAC.txt
+	 * 
+	 * @param name o nome do ficheiro
+	 * @param hmac o hash do ficheiro
+	 * @return a linha cifrada
+	 * @throws Exception se ocorrer um erro ao cifrar
+	 */
+	private static String encryptHash(String name, String hmac) throws Exception {
+		return RecordCipher.encrypt((name + ":" + hmac).getBytes(StandardCharsets.UTF_8), "HMAC.txt");
+	}
+
+	/**
+	 * Estende um hash encadeado com as linhas dadas. Cada linha, incluindo a sua
+	 * quebra de linha, e autenticada junto com o hash das linhas anteriores, pelo
+	 * que alterar, remover, reordenar ou acrescentar linhas muda o resultado.
+	 * 
+	 * @param head o hash das linhas anteriores
+	 * @param data as linhas a acrescentar
+	 * @return o novo hash
+	 * @throws Exception se ocorrer um erro no calculo
+	 */
+	private static byte[] chain(byte[] head, byte[] data) throws Exception {
+		return CryptoService.withMac("HmacSHA256", mac -> {
+			mac.init(TintolmarketServer.getFileKey());
+			byte[] result = head;
+			int start = 0;
+			for (int i = 0; i < data.length; i++) {
+				if (data[i] == '\n' || i == data.length - 1) {
+					mac.update(result);
+					mac.update(data, start, i + 1 - start);
+					result = mac.doFinal();
+					start = i + 1;
+				}
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Calcula o hash encadeado de todo o conteudo de um ficheiro, no formato
+	 * guardado em HMAC.txt
+	 * 
+	 * @param data o conteudo do ficheiro
+	 * @return o hash, com o prefixo CHAIN
+	 * @throws Exception se ocorrer um erro no calculo
+	 */
+	private static String chainHash(byte[] data) throws Exception {
+		return CHAIN + Base64.getEncoder().encodeToString(chain(new byte[0], data));
+	}
+
+	/**
+	 * Obtem o ficheiro temporario onde replaceFiles escreve o novo conteudo de
+	 * um ficheiro
+	 * 
+	 * @param file o ficheiro
+	 * @return o ficheiro temporario
+	 */
+	private static File replacementOf(File file) {
+		return new File(file.getParentFile(), file.getName() + ".tmp");
+	}
+
+	/**
+	 * Le o conteudo de um ficheiro
+	 * 
+	 * @param file o ficheiro
+	 * @return o conteudo, ou um array vazio se o ficheiro nao existir
+	 * @throws Exception se ocorrer um erro na leitura
+	 */
+	private static byte[] readBytes(File file) throws Exception {
+		return file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+	}
+
+	/**
+	 * Calcula o hmac do ficheiro fornecido, como nas versoes anteriores
 	 * 
 	 * @param file o ficheiro a usar
 	 * @return uma string com o hash de file
 	 */
 	private static String calculateHmac(File file) {
 		try {
-			Mac mac = Mac.getInstance("HmacSHA1");
-			mac.init(TintolmarketServer.getFileKey());
-			mac.update(Files.readAllBytes(file.toPath()));
-			byte[] hmac = mac.doFinal();
+			byte[] hmac = CryptoService.withMac("HmacSHA1", mac -> {
+				mac.init(TintolmarketServer.getFileKey());
+				return mac.doFinal(Files.readAllBytes(file.toPath()));
+			});
 			return Base64.getEncoder().encodeToString(hmac);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,346 @@
+package utils;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A classe WriteBehind implementa o modo opcional de escrita diferida dos
+ * catalogos. Neste modo, as alteracoes feitas com Utils.putRecord e
+ * Utils.removeRecord atualizam apenas o estado em memoria e sao colocadas numa
+ * fila; o pedido do cliente e respondido sem esperar pela cifra nem pela
+ * escrita. Uma thread propria retira as alteracoes da fila, pela ordem em que
+ * foram feitas, e escreve-as nos registos de alteracoes dos catalogos.
+ *
+ * A fila tem uma capacidade limitada: quando esta cheia, quem altera um
+ * catalogo espera que haja espaco. Ao terminar, o servidor deixa de aceitar
+ * alteracoes na fila, espera que a thread de escrita escreva e sincronize com o
+ * disco as que la estao e que termine (ver Utils.closeStorage); a partir desse
+ * momento, cada alteracao e escrita por quem a faz antes de ser confirmada,
+ * para que nenhuma sessao ainda ativa confirme uma alteracao que se perde.
+ *
+ * Uma escrita que falha e desfeita por ChangeLog.append e repetida algumas
+ * vezes. Se continuar a falhar, ou o registo nao puder ser reposto, a
+ * escrita diferida para: as alteracoes ainda na fila sao descartadas, quem
+ * espera por elas em flush recebe o erro e as novas alteracoes sao recusadas,
+ * para que os clientes nao recebam confirmacoes de alteracoes que nao vao ser
+ * escritas.
+ *
+ * A configuracao e feita atraves da seguinte propriedade do sistema:
+ * <ul>
+ * <li>tintolmarket.writeBehind - numero maximo de alteracoes em espera de
+ * escrita (por omissao 0, que desativa a escrita diferida)</li>
+ * </ul>
+ */
+public final class WriteBehind {
+
+	private static final int CAPACITY = Integer.getInteger("tintolmarket.writeBehind", 0);
+	private static final int ATTEMPTS = 3;
+	private static final long RETRY_DELAY = 100;
+
+	private static final BlockingQueue<Mutation> queue = CAPACITY > 0 ? new ArrayBlockingQueue<>(CAPACITY) : null;
+	private static final Mutation STOP = new Mutation(new File(""), Collections.emptyList());
+	private static final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+	private static final Object lock = new Object();
+	private static final AtomicLong submitted = new AtomicLong();
+	private static long written;
+	private static long lost;
+	private static Exception failure;
+	private static volatile long inFlightSince;
+	private static volatile long maxLag;
+	private static boolean stopped;
+	private static Thread writer;
+
+	private WriteBehind() {
+	}
+
+	/**
+	 * Indica se a escrita diferida esta ativa
+	 *
+	 * @return true se as alteracoes aos catalogos sao escritas pela thread de
+	 *         escrita
+	 */
+	public static boolean enabled() {
+		return queue != null;
+	}
+
+	/**
+	 * Coloca alteracoes a um catalogo na fila de escrita, esperando se a fila
+	 * estiver cheia. Depois de close, as alteracoes sao escritas de imediato.
+	 *
+	 * @param file    o ficheiro do catalogo
+	 * @param changes as entradas a acrescentar ao registo do catalogo
+	 * @throws IllegalStateException se a escrita diferida parou por causa de um
+	 *                               erro, ou se a escrita imediata falhar
+	 */
+	static void submit(File file, List<byte[]> changes) {
+		Mutation mutation = new Mutation(file, changes);
+		gate.readLock().lock();
+		try {
+			if (!stopped) {
+				synchronized (lock) {
+					if (failure != null)
+						throw new IllegalStateException("A escrita dos catalogos falhou", failure);
+					if (writer == null)
+						startWriter();
+				}
+				submitted.incrementAndGet();
+				put(mutation);
+				return;
+			}
+		} finally {
+			gate.readLock().unlock();
+		}
+
+		// o servidor esta a terminar e a thread de escrita ja terminou
+		try {
+			append(mutation.file, mutation.changes);
+		} catch (Exception e) {
+			throw new IllegalStateException("A escrita dos catalogos falhou", e);
+		}
+		GroupCommit.awaitDurable();
+	}
+
+	/**
+	 * Escreve as alteracoes da fila quando o servidor termina e espera que a
+	 * thread de escrita termine. As alteracoes feitas depois sao escritas por quem
+	 * as faz.
+	 */
+	static void close() {
+		Thread stopping;
+		gate.writeLock().lock();
+		try {
+			if (stopped)
+				return;
+			stopped = true;
+			synchronized (lock) {
+				stopping = writer;
+			}
+			if (stopping != null)
+				put(STOP);
+		} finally {
+			gate.writeLock().unlock();
+		}
+		if (stopping == null)
+			return;
+		boolean interrupted = false;
+		while (stopping.isAlive()) {
+			try {
+				stopping.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		synchronized (lock) {
+			if (failure != null)
+				System.out.println("Alteracoes aos catalogos perdidas: " + lost);
+		}
+	}
+
+	/**
+	 * Espera ate que todas as alteracoes colocadas na fila estejam escritas e
+	 * sincronizadas com o disco
+	 *
+	 * @throws IllegalStateException se a escrita diferida parou por causa de um
+	 *                               erro
+	 */
+	public static void flush() {
+		if (!enabled())
+			return;
+		long target = submitted.get();
+		synchronized (lock) {
+			boolean interrupted = false;
+			while (written < target) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (failure != null)
+				throw new IllegalStateException("A escrita dos catalogos falhou", failure);
+		}
+	}
+
+	/**
+	 * Obtem uma representacao textual das metricas da escrita diferida: a
+	 * ocupacao da fila e o atraso, em milissegundos, entre uma alteracao ser
+	 * feita e estar no disco
+	 *
+	 * @return as metricas atuais
+	 */
+	public static String metrics() {
+		long done;
+		long discarded;
+		synchronized (lock) {
+			done = written;
+			discarded = lost;
+		}
+		return String.format(
+				"escrita[diferida] fila=%d capacidade=%d atraso=%d atrasoMax=%d submetidas=%d escritas=%d perdidas=%d",
+				queue.size(), CAPACITY, lag(), TimeUnit.NANOSECONDS.toMillis(maxLag), submitted.get(),
+				done - discarded, discarded);
+	}
+
+	/**
+	 * Calcula o atraso atual: ha quanto tempo espera a alteracao mais antiga
+	 * ainda nao escrita
+	 *
+	 * @return o atraso em milissegundos, ou 0 se nao houver alteracoes pendentes
+	 */
+	private static long lag() {
+		long since = inFlightSince;
+		if (since == 0) {
+			Mutation head = queue.peek();
+			if (head == null || head == STOP)
+				return 0;
+			since = head.enqueued;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(Math.max(0, System.nanoTime() - since));
+	}
+
+	/**
+	 * Coloca uma alteracao na fila, esperando se a fila estiver cheia
+	 *
+	 * @param mutation a alteracao
+	 */
+	private static void put(Mutation mutation) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(mutation);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Inicia a thread de escrita, que termina quando retira STOP da fila
+	 */
+	private static void startWriter() {
+		writer = new Thread(() -> {
+			List<Mutation> drained = new ArrayList<>();
+			boolean stop = false;
+			while (!stop) {
+				try {
+					drained.add(queue.take());
+				} catch (InterruptedException e) {
+					continue; // so termina depois de esvaziar a fila
+				}
+				queue.drainTo(drained);
+				stop = drained.remove(STOP);
+				if (!drained.isEmpty()) {
+					inFlightSince = drained.get(0).enqueued;
+					write(drained);
+					try {
+						GroupCommit.awaitDurable();
+					} catch (UncheckedIOException e) {
+						System.out.println("Erro na escrita diferida dos catalogos, novas alteracoes serao recusadas");
+						e.printStackTrace();
+						synchronized (lock) {
+							if (failure == null)
+								failure = e;
+						}
+					}
+					maxLag = Math.max(maxLag, System.nanoTime() - inFlightSince);
+					inFlightSince = 0;
+					synchronized (lock) {
+						written += drained.size();
+						lock.notifyAll();
+					}
+				}
+				drained.clear();
+			}
+		}, "write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Escreve alteracoes retiradas da fila. As alteracoes seguidas ao mesmo
+	 * catalogo sao acrescentadas ao seu registo numa so escrita. Depois de uma
+	 * escrita falhar, as alteracoes sao descartadas.
+	 *
+	 * @param mutations as alteracoes, pela ordem em que foram feitas
+	 */
+	private static void write(List<Mutation> mutations) {
+		int i = 0;
+		while (i < mutations.size()) {
+			int first = i;
+			File file = mutations.get(i).file;
+			List<byte[]> changes = new ArrayList<>();
+			for (; i < mutations.size() && mutations.get(i).file.equals(file); i++)
+				changes.addAll(mutations.get(i).changes);
+			synchronized (lock) {
+				if (failure != null) {
+					lost += i - first;
+					continue;
+				}
+			}
+			try {
+				append(file, changes);
+			} catch (Exception e) {
+				System.out.println("Erro na escrita diferida dos catalogos, novas alteracoes serao recusadas");
+				e.printStackTrace();
+				synchronized (lock) {
+					failure = e;
+					lost += i - first;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Acrescenta entradas ao registo de um catalogo, repetindo a escrita se esta
+	 * falhar. ChangeLog.append repoe o registo antes de lancar a excecao, exceto
+	 * se o registo ficar inconsistente, caso em que a escrita nao e repetida.
+	 *
+	 * @param file    o ficheiro do catalogo
+	 * @param changes as entradas a acrescentar
+	 * @throws Exception se todas as tentativas falharem
+	 */
+	private static void append(File file, List<byte[]> changes) throws Exception {
+		for (int attempt = 1;; attempt++) {
+			try {
+				ChangeLog.of(file).append(changes);
+				return;
+			} catch (Exception e) {
+				if (attempt == ATTEMPTS || e instanceof IllegalStateException)
+					throw e;
+				e.printStackTrace();
+				Thread.sleep(RETRY_DELAY * attempt);
+			}
+		}
+	}
+
+	/**
+	 * Uma alteracao a um catalogo em espera de escrita
+	 */
+	private static class Mutation {
+
+		private final File file;
+		private final List<byte[]> changes;
+		private final long enqueued = System.nanoTime();
+
+		Mutation(File file, List<byte[]> changes) {
+			this.file = file.getAbsoluteFile();
+			this.changes = changes;
+		}
+	}
+
+}